@@ -46,9 +46,12 @@ public class OpenUHS {
   private static final String OPTION_PRINT_TEXT   = "OPTION_PRINT_TEXT";
   private static final String OPTION_SAVE_XML     = "OPTION_SAVE_XML";
   private static final String OPTION_SAVE_BIN     = "OPTION_SAVE_BIN";
+  private static final String OPTION_MONITOR      = "OPTION_MONITOR";
+  private static final String OPTION_TOC          = "OPTION_TOC";
 
   private static DefaultUHSErrorHandler errorHandler = new DefaultUHSErrorHandler(System.err);
   private static OpenUHSFrame frame = null;
+  private static UHSReaderMonitor monitor = null;
 
   private static String fileName = null;
 
@@ -62,6 +65,7 @@ public class OpenUHS {
       optionMap.put(OPTION_PRINT_TEXT, Boolean.FALSE);
       optionMap.put(OPTION_SAVE_XML, Boolean.FALSE);
       optionMap.put(OPTION_SAVE_BIN, Boolean.FALSE);
+      optionMap.put(OPTION_TOC, Boolean.FALSE);
     parseArgs(args, optionMap);
 
     if (optionMap.get(OPTION_CLI) == Boolean.TRUE) {
@@ -70,6 +74,27 @@ public class OpenUHS {
         errorHandler = null;
       }
       UHSLib.setErrorHandler(errorHandler);
+      UHSLib.setTocEnabled(optionMap.get(OPTION_TOC) == Boolean.TRUE);
+
+      if (optionMap.get(OPTION_TEST) == Boolean.FALSE && optionMap.get(OPTION_PRINT_TEXT) == Boolean.FALSE && optionMap.get(OPTION_SAVE_XML) == Boolean.FALSE && optionMap.get(OPTION_SAVE_BIN) == Boolean.FALSE && optionMap.get(OPTION_TOC) == Boolean.FALSE) {
+        // Only metadata was requested, so skip the full parse
+        UHSMetadata metadata = UHSLib.probeFile(fileName);
+        if (metadata == null) {
+          System.out.println("Error: Unreadable file or parsing error");
+          System.exit(1);
+        }
+        if (optionMap.get(OPTION_HINT_TITLE) == Boolean.TRUE) {
+          String hintTitle = metadata.getTitle();
+          if (hintTitle == null || hintTitle.length() == 0) hintTitle = "Unknown";
+          System.out.println("Title: "+ hintTitle);
+        }
+        if (optionMap.get(OPTION_HINT_VERSION) == Boolean.TRUE) {
+          String hintVersion = metadata.getFormatVersion();
+          if (hintVersion == null) hintVersion = "Unknown";
+          System.out.println("Version: "+ hintVersion);
+        }
+        System.exit(0);
+      }
 
       UHSRootNode rootNode = UHSLib.parseFile(fileName, UHSLib.AUX_NEST);
       if (rootNode == null) {
@@ -139,6 +164,28 @@ public class OpenUHS {
       frame.getUHSReaderPanel().setErrorHandler(errorHandler);
       frame.getUHSDownloaderPanel().setErrorHandler(errorHandler);
 
+    if (optionMap.get(OPTION_MONITOR) != null) {
+      monitor = new UHSReaderMonitor(((Long)optionMap.get(OPTION_MONITOR)).longValue());
+        monitor.setErrorHandler(errorHandler);
+      frame.getUHSReaderPanel().setMonitor(monitor);
+      monitor.start();
+
+      // Ctrl-Shift-D logs timings so far, and they're logged again at exit
+      Action dumpAction = new AbstractAction() {
+        public void actionPerformed(ActionEvent e) {
+          errorHandler.log(UHSErrorHandler.INFO, null, monitor.getReport(), 0, null);
+        }
+      };
+      frame.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_D, InputEvent.CTRL_DOWN_MASK|InputEvent.SHIFT_DOWN_MASK), "dumpMonitor");
+      frame.getRootPane().getActionMap().put("dumpMonitor", dumpAction);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          monitor.stop();
+          errorHandler.log(UHSErrorHandler.INFO, null, monitor.getReport(), 0, null);
+        }
+      });
+    }
+
     if (fileName != null) {
       frame.getUHSReaderPanel().openFile(fileName);
     }
@@ -166,7 +213,11 @@ public class OpenUHS {
    */
   public static String getHintTitle(UHSRootNode currentNode) {
     String result = null;
-    if (currentNode.getContentType() == UHSNode.STRING) {
+    if (currentNode.getMetadata().getTitle() != null) {
+      // Recorded while parsing
+      result = currentNode.getMetadata().getTitle();
+    }
+    else if (currentNode.getContentType() == UHSNode.STRING) {
       String tmp = (String)currentNode.getContent();
       if (tmp.equals("root")) {
         if (currentNode.getChildCount() > 0) {
@@ -188,23 +239,43 @@ public class OpenUHS {
 
 
   /**
-   * Recursively reverse-seeks and returns the last contained Version node's content.
+   * Returns the last contained Version node's content.
    * "Version: " will be stripped from the beginning.
    *
    * @param currentNode a node to start extracting from
-   * @param recursing humans should should always use false (tracks nested calls)
+   * @param recursing humans should should always use false (false strips the prefix)
    * @return the reported hint version (e.g., "96a"), or null if absent or blank
    */
   public static String getHintVersion(UHSNode currentNode, boolean recursing) {
     String result = null;
-    if (currentNode.getType() == "Version") {
-      if (currentNode.getContentType() == UHSNode.STRING) {
-        result = (String)currentNode.getContent();
+
+    if (currentNode instanceof UHSRootNode && ((UHSRootNode)currentNode).getMetadata().getFormatVersion() != null) {
+      // Recorded while parsing
+      return ((UHSRootNode)currentNode).getMetadata().getFormatVersion();
+    }
+    else if (currentNode instanceof UHSRootNode && ((UHSRootNode)currentNode).getNodeCount() > 0) {
+      UHSRootNode rootNode = (UHSRootNode)currentNode;
+      UHSNode bestNode = null;
+      int[] ordinals = rootNode.getOrdinalsByType("Version");
+      for (int i=ordinals.length-1; i >= 0; i--) {
+        UHSNode tmpNode = rootNode.getNode(ordinals[i]);
+        if (tmpNode.getContentType() != UHSNode.STRING) continue;
+        // The last in document order, unless an earlier one contains it
+        if (bestNode == null || rootNode.isAncestor(tmpNode, bestNode)) bestNode = tmpNode;
       }
+      if (bestNode != null) result = (String)bestNode.getContent();
     }
-
-    for (int i=currentNode.getChildCount()-1; result == null && i >= 0; i--) {
-      result = getHintVersion(currentNode.getChild(i), true);
+    else {
+      // Last in post-order is first when seeking in reverse from the end
+      UHSNodeIterator it = new UHSNodeIterator(currentNode, UHSNodeIterator.POSTORDER);
+      while (it.hasNext()) {
+        UHSNode tmpNode = it.nextNode();
+        if (tmpNode.getType() == "Version") {
+          if (tmpNode.getContentType() == UHSNode.STRING) {
+            result = (String)tmpNode.getContent();
+          }
+        }
+      }
     }
 
     if (!recursing && result != null) {
@@ -216,7 +287,7 @@ public class OpenUHS {
 
 
   /**
-   * Recursively extracts the contents of a node and its children to files.
+   * Extracts the contents of a node and its children to files.
    * Extensions are guessed.
    *
    * @param currentNode a node to start extracting from
@@ -227,42 +298,71 @@ public class OpenUHS {
    * @see org.openuhs.UHSUtil#getFileExtension(byte[]) getFileExtension(byte[])
    */
   public static int extractNode(UHSNode currentNode, String destDir, String basename, int n) {
-    boolean extractable = false;
-    if (currentNode.getContentType() == UHSNode.IMAGE) extractable = true;
-    else if (currentNode.getContentType() == UHSNode.AUDIO) extractable = true;
-
-    if (extractable == true) {
-      int id = currentNode.getId();
-      String idStr = (id==-1?"":"_"+id);
-
-      byte[] content = (byte[])currentNode.getContent();
-      String extension = UHSUtil.getFileExtension(content);
-
-      FileOutputStream fos = null;
-      try {
-        String destFile = destDir + basename + n + idStr +"."+ extension;
-        fos = new FileOutputStream(destFile);
-        fos.write(content);
-        fos.close();
-      }
-      catch (IOException e) {
-        if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, null, "Could not save a binary", 0, e);
-      }
-      finally {
-        try {if (fos != null) fos.close();}
-        catch (IOException e) {}
+    if (currentNode instanceof UHSRootNode && ((UHSRootNode)currentNode).getNodeCount() > 0) {
+      UHSRootNode rootNode = (UHSRootNode)currentNode;
+      int[] images = rootNode.getOrdinalsByContentType(UHSNode.IMAGE);
+      int[] sounds = rootNode.getOrdinalsByContentType(UHSNode.AUDIO);
+
+      // Merge, to save in document order
+      for (int i=0, j=0; i < images.length || j < sounds.length;) {
+        if (j == sounds.length || (i < images.length && images[i] < sounds[j]))
+          n = extractBinary(rootNode.getNode(images[i++]), destDir, basename, n);
+        else
+          n = extractBinary(rootNode.getNode(sounds[j++]), destDir, basename, n);
       }
-      n++;
+      return n;
     }
 
-    for (int i=0; i < currentNode.getChildCount(); i++) {
-      n = extractNode(currentNode.getChild(i), destDir, basename, n);
+    UHSNodeIterator it = new UHSNodeIterator(currentNode, UHSNodeIterator.PREORDER);
+    while (it.hasNext()) {
+      UHSNode tmpNode = it.nextNode();
+
+      boolean extractable = false;
+      if (tmpNode.getContentType() == UHSNode.IMAGE) extractable = true;
+      else if (tmpNode.getContentType() == UHSNode.AUDIO) extractable = true;
+      if (extractable == false) continue;
+
+      n = extractBinary(tmpNode, destDir, basename, n);
     }
 
     return n;
   }
 
 
+  /**
+   * Saves a node's binary content to a file.
+   *
+   * @param currentNode a node with IMAGE or AUDIO content
+   * @param destDir path to the destination dir
+   * @param basename prefix for extracted files
+   * @param n a number for uniqueness
+   * @return n+1
+   */
+  private static int extractBinary(UHSNode currentNode, String destDir, String basename, int n) {
+    int id = currentNode.getId();
+    String idStr = (id==-1?"":"_"+id);
+
+    byte[] content = (byte[])currentNode.getContent();
+    String extension = UHSUtil.getFileExtension(content);
+
+    FileOutputStream fos = null;
+    try {
+      String destFile = destDir + basename + n + idStr +"."+ extension;
+      fos = new FileOutputStream(destFile);
+      fos.write(content);
+      fos.close();
+    }
+    catch (IOException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, null, "Could not save a binary", 0, e);
+    }
+    finally {
+      try {if (fos != null) fos.close();}
+      catch (IOException e) {}
+    }
+    return n+1;
+  }
+
+
   /**
    * Does some getopt magic.
    *
@@ -273,7 +373,7 @@ public class OpenUHS {
     boolean needFileArg = false;
 
     //StringBuffer sb = new StringBuffer();
-    LongOpt[] longopts = new LongOpt[8];
+    LongOpt[] longopts = new LongOpt[10];
       longopts[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
       longopts[1] = new LongOpt("version", LongOpt.NO_ARGUMENT, null, 2);
       longopts[2] = new LongOpt("test", LongOpt.NO_ARGUMENT, null, 't');
@@ -282,6 +382,8 @@ public class OpenUHS {
       longopts[5] = new LongOpt("save-xml", LongOpt.NO_ARGUMENT, null, 5);
       longopts[6] = new LongOpt("save-bin", LongOpt.NO_ARGUMENT, null, 6);
       longopts[7] = new LongOpt("print", LongOpt.NO_ARGUMENT, null, 'p');
+      longopts[8] = new LongOpt("monitor", LongOpt.OPTIONAL_ARGUMENT, null, 7);
+      longopts[9] = new LongOpt("toc", LongOpt.NO_ARGUMENT, null, 8);
       //longopts[1] = new LongOpt("outputdir", LongOpt.REQUIRED_ARGUMENT, sb, 'o');
       //longopts[2] = new LongOpt("maximum", LongOpt.OPTIONAL_ARGUMENT, null, 2);
 
@@ -353,6 +455,25 @@ public class OpenUHS {
           needFileArg = true;
           break;
 
+        case 7:
+          arg = g.getOptarg();
+          try {
+            long stallMillis = (arg != null ? Long.parseLong(arg) : UHSReaderMonitor.DEFAULT_STALL_MILLIS);
+            if (stallMillis <= 0) throw new NumberFormatException();
+            optionMap.put(OPTION_MONITOR, new Long(stallMillis));
+          }
+          catch (NumberFormatException e) {
+            System.err.println("Error: Invalid stall threshold: "+ arg);
+            optFailed = true;
+          }
+          break;
+
+        case 8:
+          optionMap.put(OPTION_TOC, Boolean.TRUE);
+          optionMap.put(OPTION_CLI, Boolean.TRUE);
+          needFileArg = true;
+          break;
+
         case 'p':
           optionMap.put(OPTION_PRINT_TEXT, Boolean.TRUE);
           optionMap.put(OPTION_CLI, Boolean.TRUE);
@@ -419,6 +540,11 @@ public class OpenUHS {
     System.out.println("  -p, --print         print hints as indented plain text");
     System.out.println("      --save-xml      extract text as xml");
     System.out.println("      --save-bin      extract embedded binaries");
+    System.out.println("      --toc           write a table of contents beside the file,");
+    System.out.println("                        for tools that read single hunks");
+    System.out.println("      --monitor[=MS]  log reader timings, and event thread stalls");
+    System.out.println("                        longer than MS (default 200), at exit");
+    System.out.println("                        or on Ctrl-Shift-D");
     System.out.println("");
     System.out.println("  -h, --help          display this help and exit");
     System.out.println("      --version       output version information and exit");
@@ -33,6 +33,7 @@ import org.openuhs.downloader.*;
 
 public class OpenUHSFrame extends JFrame implements Nerfable {
   private static String HINTS_PATH = "./hints";
+  private static String PROGRESS_PATH = "./progress";
 
   private OpenUHSFrame pronoun = this;
 
@@ -48,6 +49,7 @@ public class OpenUHSFrame extends JFrame implements Nerfable {
 
     final JTabbedPane tabbedPane = new JTabbedPane();
       readerPanel.setHintsPath(HINTS_PATH);
+      readerPanel.setProgressPath(PROGRESS_PATH);
       tabbedPane.add(readerPanel, "Reader");
 
       downloaderPanel.setHintsPath(HINTS_PATH);
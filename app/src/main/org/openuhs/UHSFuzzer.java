@@ -0,0 +1,679 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import org.openuhs.core.*;
+
+
+/**
+ * A mutation fuzzer for OpenUHSLib.
+ * <br />Seed files are mutated and parsed over and over, looking for
+ * inputs that crash the parser, hang it, or make it spend far more
+ * time or memory than the file's size warrants.
+ * <br />
+ * <br />Coverage is approximated by what a parse reports back: the
+ * error messages logged (digits stripped) and the types of nodes
+ * built. Mutants that produce a new combination join the pool of
+ * inputs to mutate further.
+ * <br />
+ * <br />Flagged inputs are shrunk, by deleting lines and then bytes for
+ * as long as the same problem recurs, and saved to the output dir.
+ * Hangs are saved as they are.
+ * <br />
+ * <br />Parses run with a time limit, so a hang usually stops itself.
+ * One the parser can't stop leaves its thread behind, and timing
+ * isn't judged while that thread is still running.
+ * <br />
+ * <br />With -l, files are parsed with untrusted limits, to show that
+ * hardened parsing stays bounded. A limit being hit is a clean result,
+ * but a run that overshoots the time limit is flagged, as is anything
+ * thrown.
+ *
+ * <pre> Usage: UHSFuzzer [-n iterations] [-s seed] [-o outdir] [-l] seed.uhs...</pre>
+ */
+public class UHSFuzzer {
+  public static final int OK = 0;
+  public static final int CRASH = 1;
+  public static final int HANG = 2;
+  public static final int SLOW = 3;
+  public static final int GREEDY = 4;
+  public static final int OVER_LIMIT = 5;
+
+  private static final String[] RESULT_NAMES = new String[] {"ok", "crash", "hang", "slow", "greedy", "overlimit"};
+
+  private static Method allocatedBytesMethod = getAllocatedBytesMethod();
+
+  private static final String[] INTERESTING_LINES = new String[] {
+    "0", "-1", "1", "2147483647", "-2147483648", "99999999999", "=", "-", " ", "",
+    "2 subject", "3 hint", "2 nesthint", "1 link", "3 hyperpng", "3 text", "2 blank",
+    "000000 0 0", "000000 2147483647 2147483647", "#a+", "#w.", "##", "#p+", "#h+#h-", "^break^"
+  };
+
+  private long hangMillis = 5000;
+  private long slowMillisBase = 250;
+  private long slowMicrosPerByte = 20;
+  private long greedyBytesBase = 64*1024*1024;
+  private long greedyBytesPerByte = 2000;
+
+  private UHSParseLimits limits = null;
+  private UHSParseLimits guardLimits = null;
+
+  private Random rng = null;
+  private File scratchFile = null;
+  private File outDir = null;
+
+  private ArrayList pool = new ArrayList();
+  private HashSet signatures = new HashSet();
+  private HashSet flaggedSignatures = new HashSet();
+
+  private String lastSignature = null;
+  private String lastProblem = null;
+
+  private int minimizeBudget = 0;
+
+  private Thread worker = null;
+  private Object[] workerJob = null;
+  private ArrayList stuckWorkers = new ArrayList();
+
+
+  /**
+   * Creates a fuzzer.
+   *
+   * @param seed a random seed, for reproducible runs
+   * @param inOutDir a dir to save flagged inputs in (created if necessary)
+   */
+  public UHSFuzzer(long seed, File inOutDir) throws IOException {
+    rng = new Random(seed);
+    outDir = inOutDir;
+    if (!outDir.exists()) outDir.mkdirs();
+    scratchFile = File.createTempFile("uhsfuzz", ".uhs");
+    scratchFile.deleteOnExit();
+    guardLimits = getGuardLimits(null, hangMillis);
+  }
+
+
+  /**
+   * Sets resource limits to parse with.
+   * <br />Runs that take longer than the time limit will be flagged.
+   *
+   * @param l the limits, or null for none (the default)
+   */
+  public void setParseLimits(UHSParseLimits l) {
+    limits = l;
+    guardLimits = getGuardLimits(l, hangMillis);
+  }
+
+
+  /**
+   * Returns a copy of some limits, with a time limit no later than a hang.
+   * <br />The parser then stops itself, rather than leaving a thread
+   * spinning after the fuzzer gives up on it.
+   *
+   * @param l the limits to copy, or null for none
+   * @param millis the hang timeout
+   */
+  private static UHSParseLimits getGuardLimits(UHSParseLimits l, long millis) {
+    UHSParseLimits result = new UHSParseLimits();
+    if (l != null) {
+      result.setMaxFileSize(l.getMaxFileSize());
+      result.setMaxNodes(l.getMaxNodes());
+      result.setMaxDepth(l.getMaxDepth());
+      result.setMaxTextLength(l.getMaxTextLength());
+      result.setMaxBinarySize(l.getMaxBinarySize());
+    }
+    if (l == null || l.getMaxMillis() == UHSParseLimits.UNLIMITED || l.getMaxMillis() > millis) {
+      result.setMaxMillis(millis);
+    }
+    else {
+      result.setMaxMillis(l.getMaxMillis());
+    }
+    return result;
+  }
+
+
+  /**
+   * Adds a file to the pool of inputs to mutate.
+   */
+  public void addSeed(File f) throws IOException {
+    byte[] bytes = readBytes(f);
+    int result = runInput(bytes);
+    if (result != OK) {
+      System.out.println("Seed "+ f.getName() +" is already "+ RESULT_NAMES[result] +": "+ lastProblem);
+      return;
+    }
+    signatures.add(lastSignature);
+    pool.add(bytes);
+  }
+
+
+  /**
+   * Mutates and parses inputs.
+   *
+   * @param iterations the number of mutants to try
+   * @return the number of problems flagged
+   */
+  public int fuzz(int iterations) throws IOException {
+    if (pool.size() == 0) return 0;
+
+    int flagCount = 0;
+    for (int i=0; i < iterations; i++) {
+      byte[] parent = (byte[])pool.get(rng.nextInt(pool.size()));
+      byte[] mutant = mutate(parent);
+
+      int result = runInput(mutant);
+      if (result == OK) {
+        if (signatures.add(lastSignature)) pool.add(mutant);
+      }
+      else {
+        String problem = lastProblem;
+        String key = RESULT_NAMES[result] +": "+ problem;
+        if (flaggedSignatures.add(key)) {
+          // Each hang costs a full timeout to confirm, so they aren't shrunk
+          byte[] minimized = (result == HANG ? mutant : minimize(mutant, result, problem));
+          File f = new File(outDir, RESULT_NAMES[result] +"-"+ flagCount +".uhs");
+          writeBytes(f, minimized);
+          System.out.println(key +" ("+ mutant.length +" -> "+ minimized.length +" bytes, saved as "+ f.getName() +")");
+          flagCount++;
+        }
+      }
+
+      if ((i+1) % 1000 == 0) System.out.println((i+1) +" iterations, pool "+ pool.size() +", flagged "+ flagCount);
+    }
+    return flagCount;
+  }
+
+
+  /**
+   * Parses an input and judges the outcome.
+   * <br />Afterward, lastSignature and lastProblem describe what happened.
+   *
+   * @return OK, CRASH, HANG, SLOW, GREEDY, or OVER_LIMIT
+   */
+  public int runInput(byte[] bytes) throws IOException {
+    writeBytes(scratchFile, bytes);
+
+    if (worker == null) startWorker();
+    Object[] job = new Object[] {scratchFile.getPath(), null, null, null, null};
+    synchronized (job) {
+      synchronized (this) {
+        workerJob = job;
+        notifyAll();
+      }
+      // The parser should stop itself at hangMillis, barring a loop between its checks
+      long deadline = System.currentTimeMillis() + hangMillis*2;
+      while (job[1] == null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) break;
+        try {job.wait(remaining);}
+        catch (InterruptedException e) {}
+      }
+      if (job[1] == null) {
+        // Abandon the stuck thread; it's a daemon, and quits if it ever returns
+        synchronized (this) {
+          stuckWorkers.add(worker);
+          worker = null;
+          workerJob = null;
+        }
+        System.out.println("Warning: A parse ignored its time limit, so timing won't be judged while it runs");
+        lastSignature = null;
+        lastProblem = "no result after "+ hangMillis*2 +" ms";
+        return HANG;
+      }
+    }
+
+    lastSignature = (String)job[1];
+    Throwable t = (Throwable)job[2];
+    long nanos = ((Long)job[3]).longValue();
+    long allocated = ((Long)job[4]).longValue();
+
+    if (t != null) {
+      lastProblem = describeThrowable(t);
+      return CRASH;
+    }
+    long millis = nanos / 1000000;
+    if (millis >= hangMillis) {
+      lastSignature = null;
+      lastProblem = "stopped by the time limit after "+ millis +" ms";
+      return HANG;
+    }
+    // An abandoned thread still spinning would skew timing
+    boolean timed = !isWorkerStuck();
+    if (timed && limits != null && limits.getMaxMillis() != UHSParseLimits.UNLIMITED && millis > limits.getMaxMillis()) {
+      lastProblem = "took "+ millis +" ms, over the "+ limits.getMaxMillis() +" ms limit";
+      return OVER_LIMIT;
+    }
+    if (timed && millis > slowMillisBase + bytes.length*slowMicrosPerByte/1000) {
+      lastProblem = "took "+ millis +" ms for "+ bytes.length +" bytes";
+      return SLOW;
+    }
+    if (allocated > greedyBytesBase + bytes.length*greedyBytesPerByte) {
+      lastProblem = "allocated "+ allocated +" bytes for "+ bytes.length +" bytes";
+      return GREEDY;
+    }
+    lastProblem = null;
+    return OK;
+  }
+
+
+  private void startWorker() {
+    worker = new Thread() {
+      public void run() {
+        Thread pronoun = this;
+        while (true) {
+          Object[] job = null;
+          synchronized (UHSFuzzer.this) {
+            while (worker == pronoun && workerJob == null) {
+              try {UHSFuzzer.this.wait();}
+              catch (InterruptedException e) {}
+            }
+            if (worker != pronoun) return;
+            job = workerJob;
+            workerJob = null;
+          }
+
+          Object[] outcome = parseAndWalk((String)job[0], guardLimits);
+          synchronized (job) {
+            job[1] = outcome[0];
+            job[2] = outcome[1];
+            job[3] = outcome[2];
+            job[4] = outcome[3];
+            job.notifyAll();
+          }
+        }
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+
+  /**
+   * Returns true if an abandoned worker is still running.
+   */
+  private boolean isWorkerStuck() {
+    for (Iterator it = stuckWorkers.iterator(); it.hasNext();) {
+      if (!((Thread)it.next()).isAlive()) it.remove();
+    }
+    return (stuckWorkers.size() > 0);
+  }
+
+
+  /**
+   * Parses a file and touches every node, so lazy content gets decoded.
+   *
+   * @param limits limits to parse with, or null
+   * @return signature, throwable or null, nanoseconds, allocated bytes (or 0 if unknown)
+   */
+  private static Object[] parseAndWalk(String path, UHSParseLimits limits) {
+    final TreeSet messages = new TreeSet();
+    OpenUHSLib uhsLib = new OpenUHSLib();
+    uhsLib.setErrorHandler(new UHSErrorHandler() {
+      public void log(int severity, Object source, String message, int line, Exception e) {
+        if (message != null) messages.add(message.replaceAll("[0-9]+", "#"));
+      }
+    });
+    uhsLib.setParseLimits(limits);
+
+    TreeSet types = new TreeSet();
+    Throwable thrown = null;
+    long allocatedBefore = getAllocatedBytes();
+    long startTime = System.nanoTime();
+    try {
+      UHSRootNode rootNode = uhsLib.parseFile(path, OpenUHSLib.AUX_NEST);
+      if (rootNode != null) {
+        UHSNodeIterator it = new UHSNodeIterator(rootNode, UHSNodeIterator.PREORDER);
+        while (it.hasNext()) {
+          UHSNode tmpNode = it.nextNode();
+          types.add(tmpNode.getType());
+          tmpNode.getContent();
+        }
+      }
+    }
+    catch (Throwable t) {
+      thrown = t;
+    }
+    long nanos = System.nanoTime() - startTime;
+    long allocated = Math.max(0, getAllocatedBytes() - allocatedBefore);
+
+    String signature = messages.toString() + types.toString();
+    return new Object[] {signature, thrown, new Long(nanos), new Long(allocated)};
+  }
+
+
+  /**
+   * Returns true if the VM can tell how much a thread has allocated.
+   * <br />Otherwise, GREEDY inputs can't be detected.
+   */
+  public static boolean isAllocationMeasurable() {
+    return (allocatedBytesMethod != null);
+  }
+
+  /**
+   * Looks up HotSpot's per-thread allocation counter.
+   * <br />This goes through the public interface, since the bean's own
+   * class isn't accessible on newer VMs.
+   *
+   * @return the method, or null if this VM doesn't have it
+   */
+  private static Method getAllocatedBytesMethod() {
+    try {
+      Class beanInterface = Class.forName("com.sun.management.ThreadMXBean");
+      Object bean = java.lang.management.ManagementFactory.getThreadMXBean();
+      if (!beanInterface.isInstance(bean)) return null;
+      Method m = beanInterface.getMethod("getThreadAllocatedBytes", new Class[] {long.class});
+      if (((Long)m.invoke(bean, new Object[] {new Long(Thread.currentThread().getId())})).longValue() < 0) return null;
+      return m;
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the bytes allocated by the current thread so far, if the VM can tell.
+   */
+  private static long getAllocatedBytes() {
+    if (allocatedBytesMethod == null) return 0;
+    try {
+      Object bean = java.lang.management.ManagementFactory.getThreadMXBean();
+      return ((Long)allocatedBytesMethod.invoke(bean, new Object[] {new Long(Thread.currentThread().getId())})).longValue();
+    }
+    catch (Exception e) {
+      return 0;
+    }
+  }
+
+
+  private static String describeThrowable(Throwable t) {
+    StackTraceElement[] tmpStack = t.getStackTrace();
+    String where = "";
+    for (int i=0; i < tmpStack.length; i++) {
+      if (tmpStack[i].getClassName().startsWith("org.openuhs.core.")) {
+        where = " at "+ tmpStack[i].getClassName().substring(17) +"."+ tmpStack[i].getMethodName() +":"+ tmpStack[i].getLineNumber();
+        break;
+      }
+    }
+    return t.getClass().getName() + where;
+  }
+
+
+  /**
+   * Applies one to four random edits to an input.
+   */
+  private byte[] mutate(byte[] parent) {
+    byte[] result = parent;
+    int edits = 1 + rng.nextInt(4);
+    for (int i=0; i < edits; i++) {
+      switch (rng.nextInt(7)) {
+        case 0: result = flipBytes(result); break;
+        case 1: result = editLines(result, 0); break;
+        case 2: result = editLines(result, 1); break;
+        case 3: result = editLines(result, 2); break;
+        case 4: result = editLines(result, 3); break;
+        case 5: result = tweakNumber(result); break;
+        case 6: result = spliceInput(result); break;
+      }
+    }
+    return result;
+  }
+
+  private byte[] flipBytes(byte[] a) {
+    if (a.length == 0) return a;
+    byte[] result = (byte[])a.clone();
+    int count = 1 + rng.nextInt(8);
+    for (int i=0; i < count; i++) {
+      result[rng.nextInt(result.length)] = (byte)rng.nextInt(256);
+    }
+    return result;
+  }
+
+
+  /**
+   * Edits whole lines.
+   *
+   * @param op 0 to delete, 1 to duplicate, 2 to insert something interesting, 3 to swap two lines
+   */
+  private byte[] editLines(byte[] a, int op) {
+    ArrayList lines = splitLines(a);
+    if (lines.size() == 0) return a;
+    int n = rng.nextInt(lines.size());
+
+    if (op == 0) {
+      int count = 1 + rng.nextInt(Math.min(8, lines.size()-n));
+      for (int i=0; i < count; i++) lines.remove(n);
+    }
+    else if (op == 1) {
+      int count = 1 + rng.nextInt(Math.min(8, lines.size()-n));
+      ArrayList copies = new ArrayList(lines.subList(n, n+count));
+      lines.addAll(n, copies);
+    }
+    else if (op == 2) {
+      String tmp = INTERESTING_LINES[rng.nextInt(INTERESTING_LINES.length)];
+      lines.add(n, latinBytes(tmp +"\r\n"));
+    }
+    else {
+      int m = rng.nextInt(lines.size());
+      Object tmp = lines.get(n);
+      lines.set(n, lines.get(m));
+      lines.set(m, tmp);
+    }
+    return joinLines(lines);
+  }
+
+
+  /**
+   * Replaces a run of digits with a boundary value, or nudges it.
+   */
+  private byte[] tweakNumber(byte[] a) {
+    if (a.length == 0) return a;
+    int start = rng.nextInt(a.length);
+    while (start < a.length && (a[start] < '0' || a[start] > '9')) start++;
+    if (start == a.length) return a;
+    int end = start;
+    while (end < a.length && a[end] >= '0' && a[end] <= '9') end++;
+
+    String digits = new String(a, start, end-start);
+    String replacement = null;
+    switch (rng.nextInt(5)) {
+      case 0: replacement = "0"; break;
+      case 1: replacement = "2147483647"; break;
+      case 2: replacement = "99999999999"; break;
+      case 3: replacement = ""+ (digits.length()<9 ? Integer.parseInt(digits)+1 : 1); break;
+      default: replacement = ""+ (digits.length()<9 ? Math.max(0, Integer.parseInt(digits)-1) : 1); break;
+    }
+    byte[] r = latinBytes(replacement);
+    byte[] result = new byte[a.length - (end-start) + r.length];
+    System.arraycopy(a, 0, result, 0, start);
+    System.arraycopy(r, 0, result, start, r.length);
+    System.arraycopy(a, end, result, start+r.length, a.length-end);
+    return result;
+  }
+
+
+  /**
+   * Joins the start of one input to the end of another pool member.
+   */
+  private byte[] spliceInput(byte[] a) {
+    byte[] b = (byte[])pool.get(rng.nextInt(pool.size()));
+    if (a.length == 0 || b.length == 0) return a;
+    int cutA = rng.nextInt(a.length);
+    int cutB = rng.nextInt(b.length);
+    byte[] result = new byte[cutA + b.length-cutB];
+    System.arraycopy(a, 0, result, 0, cutA);
+    System.arraycopy(b, cutB, result, cutA, b.length-cutB);
+    return result;
+  }
+
+
+  /**
+   * Shrinks an input while it keeps causing the same problem.
+   * <br />Chunks of lines are deleted, then chunks of bytes, halving the
+   * chunk size whenever nothing can be removed.
+   */
+  private byte[] minimize(byte[] input, int result, String problem) throws IOException {
+    byte[] best = input;
+    minimizeBudget = 2000;
+
+    ArrayList lines = splitLines(best);
+    for (int chunk=Math.max(1, lines.size()/2); chunk >= 1; chunk /= 2) {
+      for (int i=0; i+chunk <= lines.size(); ) {
+        ArrayList candidate = new ArrayList(lines);
+        candidate.subList(i, i+chunk).clear();
+        byte[] bytes = joinLines(candidate);
+        if (reproduces(bytes, result, problem)) {
+          lines = candidate;
+          best = bytes;
+        }
+        else i += chunk;
+      }
+    }
+
+    // Bytes are only worth the effort on small inputs
+    if (best.length <= 4096) {
+      for (int chunk=Math.max(1, best.length/2); chunk >= 1; chunk /= 2) {
+        for (int i=0; i+chunk <= best.length; ) {
+          byte[] bytes = new byte[best.length-chunk];
+          System.arraycopy(best, 0, bytes, 0, i);
+          System.arraycopy(best, i+chunk, bytes, i, best.length-i-chunk);
+          if (reproduces(bytes, result, problem)) best = bytes;
+          else i += chunk;
+        }
+      }
+    }
+    return best;
+  }
+
+  private boolean reproduces(byte[] bytes, int result, String problem) throws IOException {
+    if (minimizeBudget <= 0) return false;
+    minimizeBudget--;
+
+    int r = runInput(bytes);
+    if (r != result) return false;
+    // Performance problems vary in their numbers, crashes must match
+    return (result != CRASH || problem.equals(lastProblem));
+  }
+
+
+  /**
+   * Splits bytes into lines, each keeping its line break.
+   */
+  private static ArrayList splitLines(byte[] a) {
+    ArrayList result = new ArrayList();
+    int start = 0;
+    for (int i=0; i < a.length; i++) {
+      if (a[i] == '\n') {
+        byte[] line = new byte[i+1-start];
+        System.arraycopy(a, start, line, 0, line.length);
+        result.add(line);
+        start = i+1;
+      }
+    }
+    if (start < a.length) {
+      byte[] line = new byte[a.length-start];
+      System.arraycopy(a, start, line, 0, line.length);
+      result.add(line);
+    }
+    return result;
+  }
+
+  private static byte[] joinLines(List lines) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (int i=0; i < lines.size(); i++) {
+      byte[] line = (byte[])lines.get(i);
+      result.write(line, 0, line.length);
+    }
+    return result.toByteArray();
+  }
+
+  private static byte[] latinBytes(String s) {
+    try {return s.getBytes("ISO-8859-1");}
+    catch (UnsupportedEncodingException e) {return s.getBytes();}
+  }
+
+
+  private static byte[] readBytes(File f) throws IOException {
+    RandomAccessFile inFile = new RandomAccessFile(f, "r");
+    try {
+      byte[] result = new byte[(int)inFile.length()];
+      inFile.readFully(result);
+      return result;
+    }
+    finally {inFile.close();}
+  }
+
+  private static void writeBytes(File f, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {out.write(bytes);}
+    finally {out.close();}
+  }
+
+
+  public static void main(String[] args) {
+    int iterations = 10000;
+    long seed = System.currentTimeMillis();
+    String outPath = "fuzz-out";
+    boolean limited = false;
+    ArrayList seedPaths = new ArrayList();
+
+    for (int i=0; i < args.length; i++) {
+      if (args[i].equals("-n") && i+1 < args.length) iterations = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-s") && i+1 < args.length) seed = Long.parseLong(args[++i]);
+      else if (args[i].equals("-o") && i+1 < args.length) outPath = args[++i];
+      else if (args[i].equals("-l")) limited = true;
+      else seedPaths.add(args[i]);
+    }
+    if (seedPaths.size() == 0) {
+      System.out.println("Usage: UHSFuzzer [-n iterations] [-s seed] [-o outdir] [-l] seed.uhs...");
+      System.out.println("  -l  parse with untrusted limits, flagging runs over the time limit");
+      System.exit(1);
+    }
+
+    try {
+      System.out.println("Seed: "+ seed);
+      if (!isAllocationMeasurable()) {
+        System.out.println("Warning: This VM can't measure allocation, so greedy inputs won't be flagged");
+      }
+      UHSFuzzer fuzzer = new UHSFuzzer(seed, new File(outPath));
+      if (limited) {
+        UHSParseLimits limits = UHSParseLimits.getUntrustedLimits();
+        // Well under the hang timeout, so overshooting it is caught as such
+        limits.setMaxMillis(1000);
+        fuzzer.setParseLimits(limits);
+        System.out.println("Limits: untrusted, "+ limits.getMaxMillis() +" ms");
+      }
+      for (int i=0; i < seedPaths.size(); i++) {
+        fuzzer.addSeed(new File((String)seedPaths.get(i)));
+      }
+      int flagCount = fuzzer.fuzz(iterations);
+      System.out.println("Done: "+ flagCount +" problem(s) flagged");
+      System.exit(flagCount > 0 ? 2 : 0);
+    }
+    catch (IOException e) {
+      System.err.println("Error: "+ e.toString());
+      System.exit(1);
+    }
+  }
+}
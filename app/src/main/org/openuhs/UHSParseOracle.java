@@ -0,0 +1,434 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs;
+
+import java.io.*;
+import java.util.*;
+
+import org.openuhs.core.*;
+
+
+/**
+ * Checks ways of parsing against the original one.
+ * <br />Each file is parsed by UHSLegacyParser, a frozen copy of the
+ * original OpenUHSLib, as a reference. Then it's parsed by every
+ * registered mode, and the trees are compared node by node: type,
+ * content (text or binary bytes), id, link target, child count, and
+ * hotspot coords. The first divergence is reported by its
+ * path, along with each mode's speedup over the reference.
+ * <br />
+ * <br />A faster parser should pass this before it's trusted.
+ *
+ * <pre> Usage: UHSParseOracle [-r repeats] file.uhs...</pre>
+ */
+public class UHSParseOracle {
+  private UHSErrorHandler errorHandler = new DefaultUHSErrorHandler(System.err);
+  private ArrayList modes = new ArrayList();
+  private int repeats = 3;
+
+
+  /**
+   * A way of parsing a file into a tree comparable to the legacy
+   * parseFile(name, AUX_NORMAL).
+   */
+  public static interface ParseMode {
+    /**
+     * Returns a short name for reports.
+     */
+    public String getName();
+
+    /**
+     * Does any untimed setup for a file (e.g., building an index).
+     *
+     * @return true if this mode can parse the file, false to skip it
+     */
+    public boolean prepare(String fileName) throws Exception;
+
+    /**
+     * Parses a file. This is timed.
+     *
+     * @return a tree, or null if parsing failed
+     */
+    public UHSRootNode parse(String fileName) throws Exception;
+
+    /**
+     * Undoes any setup for a file.
+     */
+    public void cleanup(String fileName);
+  }
+
+
+  public UHSParseOracle() {
+  }
+
+
+  /**
+   * Sets the error handler given to each parser.
+   *
+   * @param eh the error handler, or null, for quiet parsing
+   */
+  public void setErrorHandler(UHSErrorHandler eh) {
+    errorHandler = eh;
+  }
+
+
+  /**
+   * Sets how many times each parse is timed. The fastest counts.
+   */
+  public void setRepeats(int n) {
+    repeats = Math.max(1, n);
+  }
+
+
+  public void addMode(ParseMode m) {
+    modes.add(m);
+  }
+
+
+  /**
+   * Adds the modes OpenUHSLib offers.
+   * <br />"current" is a plain parseFile(), with all of its rewrites
+   * since the legacy parser. "toc" assembles the tree from hunks read
+   * by parseHunk() via a table of contents. "limits" parses with untrusted-file limits set.
+   * "readahead" reads the file on another thread while parsing.
+   */
+  public void addBuiltInModes() {
+    addMode(new CurrentMode());
+    addMode(new TocMode());
+    addMode(new LimitsMode());
+    addMode(new ReadAheadMode());
+  }
+
+
+  /**
+   * Parses a file every way and compares the results.
+   *
+   * @param fileName a hint file
+   * @param out a stream to print a line per mode to
+   * @return true if every mode matched the reference
+   */
+  public boolean check(String fileName, PrintStream out) {
+    ParseMode refMode = new ReferenceMode();
+    try {
+      if (refMode.parse(fileName) == null) {
+        out.println(fileName +": reference parse failed");
+        return false;
+      }
+    }
+    catch (Exception e) {
+      out.println(fileName +": reference parse threw "+ e.toString());
+      return false;
+    }
+
+    boolean result = true;
+    for (int i=0; i < modes.size(); i++) {
+      ParseMode mode = (ParseMode)modes.get(i);
+      String prefix = fileName +": "+ mode.getName();
+      try {
+        if (!mode.prepare(fileName)) {
+          out.println(prefix +" skipped");
+          continue;
+        }
+        mode.parse(fileName);  // Warm up
+
+        // Alternate, so both see the same conditions
+        UHSRootNode refRoot = null;
+        UHSRootNode modeRoot = null;
+        long[] refNanos = new long[] {Long.MAX_VALUE};
+        long[] nanos = new long[] {Long.MAX_VALUE};
+        for (int r=0; r < repeats; r++) {
+          refRoot = timeParse(refMode, fileName, refNanos);
+          modeRoot = timeParse(mode, fileName, nanos);
+        }
+
+        String problem = (modeRoot == null ? "parse failed" : compareTrees(refRoot, modeRoot));
+        if (problem != null) {
+          out.println(prefix +" DIFFERS "+ problem);
+          result = false;
+        }
+        else {
+          out.println(prefix +" ok, "+ formatRatio(refNanos[0], nanos[0]) +"x ("+ formatMillis(refNanos[0]) +" ms vs "+ formatMillis(nanos[0]) +" ms)");
+        }
+      }
+      catch (Exception e) {
+        out.println(prefix +" threw "+ e.toString());
+        result = false;
+      }
+      finally {
+        mode.cleanup(fileName);
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * Parses once, keeping the fastest time so far.
+   *
+   * @param nanos an array holding the best time
+   * @return the tree parsed, with all lazy content decoded
+   */
+  private UHSRootNode timeParse(ParseMode mode, String fileName, long[] nanos) throws Exception {
+    long startTime = System.nanoTime();
+    UHSRootNode result = mode.parse(fileName);
+    nanos[0] = Math.min(nanos[0], System.nanoTime() - startTime);
+    return result;
+  }
+
+
+  /**
+   * Compares two trees in pre-order.
+   *
+   * @return a description of the first difference, or null if they match
+   */
+  public static String compareTrees(UHSNode a, UHSNode b) {
+    UHSNodeIterator itA = new UHSNodeIterator(a, UHSNodeIterator.PREORDER);
+    UHSNodeIterator itB = new UHSNodeIterator(b, UHSNodeIterator.PREORDER);
+    while (itA.hasNext() && itB.hasNext()) {
+      UHSNode nodeA = itA.nextNode();
+      UHSNode nodeB = itB.nextNode();
+      String problem = compareNodes(nodeA, nodeB);
+      if (problem != null) return "at "+ getPathString(itA) +": "+ problem;
+    }
+    if (itA.hasNext() || itB.hasNext()) return "in node count";
+    return null;
+  }
+
+
+  /**
+   * Compares two nodes, but not their descendants.
+   *
+   * @return a description of the difference, or null if they match
+   */
+  public static String compareNodes(UHSNode a, UHSNode b) {
+    if (!a.getType().equals(b.getType())) return "type "+ a.getType() +" vs "+ b.getType();
+    if (a.getContentType() != b.getContentType()) return "content type "+ a.getContentType() +" vs "+ b.getContentType();
+
+    Object contentA = a.getContent();
+    Object contentB = b.getContent();
+    if (contentA instanceof byte[] && contentB instanceof byte[]) {
+      if (!Arrays.equals((byte[])contentA, (byte[])contentB)) return "binary content ("+ ((byte[])contentA).length +" vs "+ ((byte[])contentB).length +" bytes)";
+    }
+    else if (contentA == null ? contentB != null : !contentA.equals(contentB)) {
+      return "content \""+ abbreviate(contentA) +"\" vs \""+ abbreviate(contentB) +"\"";
+    }
+
+    if (a.getId() != b.getId()) return "id "+ a.getId() +" vs "+ b.getId();
+    if (a.isLink() != b.isLink() || a.getLinkTarget() != b.getLinkTarget()) return "link target "+ a.getLinkTarget() +" vs "+ b.getLinkTarget();
+    if (a.getChildCount() != b.getChildCount()) return "child count "+ a.getChildCount() +" vs "+ b.getChildCount();
+
+    if ((a instanceof UHSHotSpotNode) != (b instanceof UHSHotSpotNode)) return "hotspot class";
+    if (a instanceof UHSHotSpotNode) {
+      for (int i=0; i < a.getChildCount(); i++) {
+        int[] coordsA = ((UHSHotSpotNode)a).getCoords(i);
+        int[] coordsB = ((UHSHotSpotNode)b).getCoords(i);
+        if (!Arrays.equals(coordsA, coordsB)) return "coords of child "+ i;
+      }
+    }
+    return null;
+  }
+
+
+  private static String getPathString(UHSNodeIterator it) {
+    UHSNode[] path = it.getPath();
+    StringBuffer result = new StringBuffer();
+    for (int i=1; i < path.length; i++) {
+      result.append("/").append(path[i].getType()).append("[").append(path[i-1].indexOfChild(path[i])).append("]");
+    }
+    if (result.length() == 0) result.append("/");
+    return result.toString();
+  }
+
+  private static String abbreviate(Object o) {
+    String s = String.valueOf(o).replaceAll("\n", "\\\\n");
+    if (s.length() > 40) s = s.substring(0, 37) +"...";
+    return s;
+  }
+
+  private static String formatRatio(long refNanos, long nanos) {
+    return String.valueOf(Math.round(refNanos*100.0/Math.max(1, nanos))/100.0);
+  }
+
+  private static String formatMillis(long nanos) {
+    return String.valueOf(Math.round(nanos/10000.0)/100.0);
+  }
+
+
+  /**
+   * Forces lazily decoded content, so timing covers all the work.
+   */
+  private static UHSRootNode decodeAll(UHSRootNode rootNode) {
+    if (rootNode == null) return null;
+    UHSNodeIterator it = new UHSNodeIterator(rootNode, UHSNodeIterator.PREORDER);
+    while (it.hasNext()) it.nextNode().getContent();
+    return rootNode;
+  }
+
+
+
+  /**
+   * The legacy parse everything is compared against.
+   */
+  private class ReferenceMode implements ParseMode {
+    public String getName() {return "reference";}
+
+    public boolean prepare(String fileName) {return true;}
+
+    public UHSRootNode parse(String fileName) {
+      UHSLegacyParser uhsLib = new UHSLegacyParser();
+      uhsLib.setErrorHandler(errorHandler);
+      return decodeAll(uhsLib.parseFile(fileName, UHSLegacyParser.AUX_NORMAL));
+    }
+
+    public void cleanup(String fileName) {}
+  }
+
+
+  /**
+   * Parses as the reader does, decoding lazily through an explicit frame stack.
+   */
+  private class CurrentMode implements ParseMode {
+    public String getName() {return "current";}
+
+    public boolean prepare(String fileName) {return true;}
+
+    public UHSRootNode parse(String fileName) {
+      OpenUHSLib uhsLib = new OpenUHSLib();
+      uhsLib.setErrorHandler(errorHandler);
+      return decodeAll(uhsLib.parseFile(fileName, OpenUHSLib.AUX_NORMAL));
+    }
+
+    public void cleanup(String fileName) {}
+  }
+
+
+  /**
+   * Assembles the tree from hunks parsed individually via a table of contents.
+   */
+  private class TocMode implements ParseMode {
+    private UHSTocIndex toc = null;
+    private boolean tocExisted = false;
+
+    public String getName() {return "toc";}
+
+    public boolean prepare(String fileName) throws IOException {
+      File tocFile = UHSTocIndex.getTocFile(fileName);
+      tocExisted = tocFile.exists();
+
+      toc = UHSTocIndex.load(fileName);
+      if (toc == null) {
+        OpenUHSLib uhsLib = new OpenUHSLib();
+        uhsLib.setErrorHandler(errorHandler);
+        uhsLib.setTocEnabled(true);
+        uhsLib.parseFile(fileName, OpenUHSLib.AUX_NORMAL);
+        toc = UHSTocIndex.load(fileName);
+      }
+      // Only 9x files get one
+      return (toc != null);
+    }
+
+    public UHSRootNode parse(String fileName) {
+      if (toc == null) return null;
+
+      OpenUHSLib uhsLib = new OpenUHSLib();
+      uhsLib.setErrorHandler(errorHandler);
+      UHSRootNode rootNode = new UHSRootNode();
+        rootNode.setContent("root", UHSNode.STRING);
+      for (int i=0; i < toc.getHunkCount(); i++) {
+        // Top-level hunks have the root as their parent, which isn't in the table
+        if (toc.indexOfId(toc.getParentId(i)) != -1) continue;
+        UHSNode hunkNode = uhsLib.parseHunk(fileName, toc, toc.getId(i));
+        if (hunkNode == null) return null;
+        rootNode.addChild(hunkNode);
+      }
+      return decodeAll(rootNode);
+    }
+
+    public void cleanup(String fileName) {
+      if (!tocExisted) UHSTocIndex.getTocFile(fileName).delete();
+      toc = null;
+    }
+  }
+
+
+  /**
+   * Parses with untrusted-file limits, which shouldn't affect a sane file.
+   */
+  private class LimitsMode implements ParseMode {
+    public String getName() {return "limits";}
+
+    public boolean prepare(String fileName) {return true;}
+
+    public UHSRootNode parse(String fileName) {
+      OpenUHSLib uhsLib = new OpenUHSLib();
+      uhsLib.setErrorHandler(errorHandler);
+      uhsLib.setParseLimits(UHSParseLimits.getUntrustedLimits());
+      return decodeAll(uhsLib.parseFile(fileName, OpenUHSLib.AUX_NORMAL));
+    }
+
+    public void cleanup(String fileName) {}
+  }
+
+
+
+  /**
+   * Reads ahead on another thread while splitting lines.
+   */
+  private class ReadAheadMode implements ParseMode {
+    public String getName() {return "readahead";}
+
+    public boolean prepare(String fileName) {return true;}
+
+    public UHSRootNode parse(String fileName) {
+      OpenUHSLib uhsLib = new OpenUHSLib();
+      uhsLib.setErrorHandler(errorHandler);
+      uhsLib.setReadAheadEnabled(true);
+      return decodeAll(uhsLib.parseFile(fileName, OpenUHSLib.AUX_NORMAL));
+    }
+
+    public void cleanup(String fileName) {}
+  }
+
+
+
+  public static void main(String[] args) {
+    UHSParseOracle oracle = new UHSParseOracle();
+    oracle.addBuiltInModes();
+
+    ArrayList fileNames = new ArrayList();
+    for (int i=0; i < args.length; i++) {
+      if (args[i].equals("-r") && i+1 < args.length) oracle.setRepeats(Integer.parseInt(args[++i]));
+      else fileNames.add(args[i]);
+    }
+    if (fileNames.size() == 0) {
+      System.out.println("Usage: UHSParseOracle [-r repeats] file.uhs...");
+      System.exit(1);
+    }
+
+    int failCount = 0;
+    for (int i=0; i < fileNames.size(); i++) {
+      if (!oracle.check((String)fileNames.get(i), System.out)) failCount++;
+    }
+    System.out.println((failCount == 0 ? "All files matched" : failCount +" file(s) diverged"));
+    System.exit(failCount == 0 ? 0 : 2);
+  }
+}
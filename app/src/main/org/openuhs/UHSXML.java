@@ -71,7 +71,7 @@ public class UHSXML {
 
 
   /**
-   * Recursively exports a node and its children to xml Elements.
+   * Exports a node and its children to xml Elements.
    * Extensions are guessed.
    *
    * @param currentNode a node to start extracting from
@@ -81,68 +81,71 @@ public class UHSXML {
    * @see org.openuhs.UHSUtil#getFileExtension(byte[]) getFileExtension(byte[])
    */
   private static int exportNode(Element parentElement, UHSNode currentNode, String basename, int n) {
-    Element currentElement = null;
-    if (currentNode instanceof UHSHotSpotNode) currentElement = new Element("hotspot-node");
-    else currentElement = new Element("node");
-
-    currentElement.setAttribute("type", currentNode.getType());
-
-    int id = currentNode.getId();
-    currentElement.setAttribute("id", (id==-1?"":id+""));
-
-    int contentType = currentNode.getContentType();
-    String contentTypeString = "";
-    String contentString = "";
-    if (contentType == UHSNode.STRING) {
-      contentTypeString = "string";
-      contentString = (String)currentNode.getContent();
-    } else {
-      if (contentType == UHSNode.IMAGE) contentTypeString = "image";
-      else if (contentType == UHSNode.AUDIO) contentTypeString = "audio";
-      else contentTypeString = "unknown";
-      contentString = basename + n + (id==-1?"":"_"+id) +"."+ UHSUtil.getFileExtension((byte[])currentNode.getContent());
-      n++;
-    }
-    Element contentElement = new Element("content");
-      contentElement.setAttribute("type", contentTypeString);
-      contentElement.setContent(new CDATA(contentString));
-      currentElement.addContent(contentElement);
-
-
-    if (currentNode instanceof UHSHotSpotNode) {
-      ArrayList children = currentNode.getChildren();
-      if (children != null) {
-        int childCount = children.size();
-        for (int i=0; i < childCount; i++) {
-          int[] coords = ((UHSHotSpotNode)currentNode).getCoords((UHSNode)children.get(i));
-          Element childElement = new Element("hotspot-child");
-            childElement.setAttribute("zx", coords[0]+"");
-            childElement.setAttribute("zy", coords[1]+"");
-            childElement.setAttribute("zw", coords[2]+"");
-            childElement.setAttribute("zh", coords[3]+"");
-            childElement.setAttribute("px", coords[4]+"");
-            childElement.setAttribute("py", coords[5]+"");
-            currentElement.addContent(childElement);
-            n = exportNode(childElement, (UHSNode)children.get(i), basename, n);
+    ArrayList elements = new ArrayList();  //The most recent element at each depth
+
+    UHSNodeIterator it = new UHSNodeIterator(currentNode, UHSNodeIterator.PREORDER);
+    while (it.hasNext()) {
+      UHSNode tmpNode = it.nextNode();
+      int depth = it.getDepth();
+
+      Element containerElement = parentElement;
+      if (depth > 0) {
+        UHSNode parentNode = it.getParent();
+        Element parentNodeElement = (Element)elements.get(depth-1);
+        if (parentNode instanceof UHSHotSpotNode) {
+          int[] coords = ((UHSHotSpotNode)parentNode).getCoords(tmpNode);
+          containerElement = new Element("hotspot-child");
+            containerElement.setAttribute("zx", coords[0]+"");
+            containerElement.setAttribute("zy", coords[1]+"");
+            containerElement.setAttribute("zw", coords[2]+"");
+            containerElement.setAttribute("zh", coords[3]+"");
+            containerElement.setAttribute("px", coords[4]+"");
+            containerElement.setAttribute("py", coords[5]+"");
+            parentNodeElement.addContent(containerElement);
+        } else {
+          containerElement = new Element("child");
+            parentNodeElement.addContent(containerElement);
         }
       }
-    }
-    else {
-      int linkId = currentNode.getLinkTarget();
-      currentElement.setAttribute("link-id", (linkId==-1?"":linkId+""));
-
-      ArrayList children = currentNode.getChildren();
-      if (children != null) {
-        int childCount = children.size();
-        for (int i=0; i < childCount; i++) {
-          Element childElement = new Element("child");
-            currentElement.addContent(childElement);
-            n = exportNode(childElement, (UHSNode)children.get(i), basename, n);
-        }
+
+      Element currentElement = null;
+      if (tmpNode instanceof UHSHotSpotNode) currentElement = new Element("hotspot-node");
+      else currentElement = new Element("node");
+
+      currentElement.setAttribute("type", tmpNode.getType());
+
+      int id = tmpNode.getId();
+      currentElement.setAttribute("id", (id==-1?"":id+""));
+
+      int contentType = tmpNode.getContentType();
+      String contentTypeString = "";
+      String contentString = "";
+      if (contentType == UHSNode.STRING) {
+        contentTypeString = "string";
+        contentString = (String)tmpNode.getContent();
+      } else {
+        if (contentType == UHSNode.IMAGE) contentTypeString = "image";
+        else if (contentType == UHSNode.AUDIO) contentTypeString = "audio";
+        else contentTypeString = "unknown";
+        contentString = basename + n + (id==-1?"":"_"+id) +"."+ UHSUtil.getFileExtension((byte[])tmpNode.getContent());
+        n++;
       }
+      Element contentElement = new Element("content");
+        contentElement.setAttribute("type", contentTypeString);
+        contentElement.setContent(new CDATA(contentString));
+        currentElement.addContent(contentElement);
+
+      if (!(tmpNode instanceof UHSHotSpotNode)) {
+        int linkId = tmpNode.getLinkTarget();
+        currentElement.setAttribute("link-id", (linkId==-1?"":linkId+""));
+      }
+
+      containerElement.addContent(currentElement);
+
+      if (depth == elements.size()) elements.add(currentElement);
+      else elements.set(depth, currentElement);
     }
 
-    parentElement.addContent(currentElement);
     return n;
   }
 }
@@ -41,10 +41,63 @@ public class OpenUHSLib {
   /** Move version 9x auxiliary nodes to within the master subject node and make that the new root */
   public static final int AUX_NEST = 2;
 
+  private static final int HUNK_COMMENT = 0;
+  private static final int HUNK_CREDIT = 1;
+  private static final int HUNK_HINT = 2;
+  private static final int HUNK_NESTHINT = 3;
+  private static final int HUNK_SUBJECT = 4;
+  private static final int HUNK_LINK = 5;
+  private static final int HUNK_TEXT = 6;
+  private static final int HUNK_HYPERPNG = 7;
+  private static final int HUNK_GIFA = 8;
+  private static final int HUNK_SOUND = 9;
+  private static final int HUNK_BLANK = 10;
+  private static final int HUNK_VERSION = 11;
+  private static final int HUNK_INFO = 12;
+  private static final int HUNK_INCENTIVE = 13;
+
+  // Starting a thread costs more than reading a small file outright
+  private static final long READ_AHEAD_MIN_SIZE = 128*1024;
+
+  /** Built-in parsers by hunk type, shared by all instances */
+  private static final HashMap DEFAULT_HUNK_PARSERS = new HashMap();
+  static {
+    DEFAULT_HUNK_PARSERS.put("comment", new BuiltInHunkParser(HUNK_COMMENT));
+    DEFAULT_HUNK_PARSERS.put("credit", new BuiltInHunkParser(HUNK_CREDIT));
+    DEFAULT_HUNK_PARSERS.put("hint", new BuiltInHunkParser(HUNK_HINT));
+    DEFAULT_HUNK_PARSERS.put("nesthint", new BuiltInHunkParser(HUNK_NESTHINT));
+    DEFAULT_HUNK_PARSERS.put("subject", new BuiltInHunkParser(HUNK_SUBJECT));
+    DEFAULT_HUNK_PARSERS.put("link", new BuiltInHunkParser(HUNK_LINK));
+    DEFAULT_HUNK_PARSERS.put("text", new BuiltInHunkParser(HUNK_TEXT));
+    DEFAULT_HUNK_PARSERS.put("hyperpng", new BuiltInHunkParser(HUNK_HYPERPNG));
+    DEFAULT_HUNK_PARSERS.put("gifa", new BuiltInHunkParser(HUNK_GIFA));
+    DEFAULT_HUNK_PARSERS.put("sound", new BuiltInHunkParser(HUNK_SOUND));
+    DEFAULT_HUNK_PARSERS.put("blank", new BuiltInHunkParser(HUNK_BLANK));
+    DEFAULT_HUNK_PARSERS.put("version", new BuiltInHunkParser(HUNK_VERSION));
+    DEFAULT_HUNK_PARSERS.put("info", new BuiltInHunkParser(HUNK_INFO));
+    DEFAULT_HUNK_PARSERS.put("incentive", new BuiltInHunkParser(HUNK_INCENTIVE));
+  }
+
   private int logHeader = 0;
   private int logLine = -1;
   private UHSErrorHandler errorHandler = null;
 
+  private boolean tocEnabled = false;
+  private boolean readAheadEnabled = false;
+  private UHSTocIndex tocIndex = null;
+  private RandomAccessFile binaryFile = null;
+  private long binaryFileOffset = -1;
+  private LineFeed lineFeed = null;
+
+  private UHSParseLimits limits = null;
+  private boolean limitsActive = false;  //Within parseFile() or parseHunk(), which catch LimitExceptions
+  private int limitNodeCount = 0;
+  private long limitDeadline = -1;
+
+  private HashMap hunkParsers = null;
+  private String lexedHeader = null;
+  private int lexedCount = 0;
+
 
   /**
    * Creates an OpenUHSLib.
@@ -77,6 +130,83 @@ public class OpenUHSLib {
   }
 
 
+  /**
+   * Sets resource limits for parsing untrusted files.
+   * <br />When a limit is exceeded, parsing stops, the error handler
+   * is told which limit it was, and the parse returns null.
+   * <br />
+   * <br />Limits are counted during parseFile() and parseHunk(). Outside
+   * them, readBinaryHunk() still refuses oversized hunks, returning null.
+   *
+   * @param l the limits, or null for none (the default)
+   */
+  public void setParseLimits(UHSParseLimits l) {
+    limits = l;
+  }
+
+
+  /**
+   * Registers a parser for a type of 9x hunk.
+   * <br />This can add support for new hunk types, or replace built-in parsers.
+   *
+   * @param type the type as named in hunk headers (e.g., "hyperpng")
+   * @param parser the parser, or null to restore the built-in one (if any)
+   */
+  public void setHunkParser(String type, UHSHunkParser parser) {
+    if (parser == null) {
+      if (hunkParsers != null) hunkParsers.remove(type);
+      return;
+    }
+    if (hunkParsers == null) hunkParsers = new HashMap();
+    hunkParsers.put(type, parser);
+  }
+
+  /**
+   * Returns the parser for a type of 9x hunk.
+   *
+   * @param type the type as named in hunk headers
+   * @return the parser, or null if the type is unknown
+   */
+  public UHSHunkParser getHunkParser(String type) {
+    UHSHunkParser result = null;
+    if (hunkParsers != null) result = (UHSHunkParser)hunkParsers.get(type);
+    if (result == null) result = (UHSHunkParser)DEFAULT_HUNK_PARSERS.get(type);
+    return result;
+  }
+
+
+  /**
+   * Toggles sidecar table of contents files.
+   * <br />When enabled, parseFile() writes a UHSTocIndex beside any 9x
+   * file that lacks a current one. The default is disabled.
+   * <br />
+   * <br />The CLI enables this with --toc. The reader doesn't: it
+   * resolves links with UHSRootNode.getLink(), against the full tree,
+   * so only callers of parseHunk() gain from a sidecar.
+   *
+   * @param b true to write sidecars, false otherwise
+   * @see #parseHunk(String, UHSTocIndex, int) parseHunk(String, UHSTocIndex, int)
+   */
+  public void setTocEnabled(boolean b) {
+    tocEnabled = b;
+  }
+
+
+  /**
+   * Toggles reading ahead on another thread.
+   * <br />When enabled, parseFile() starts building nodes from the
+   * first lines while another thread reads the rest of the file.
+   * Lines that haven't arrived yet are waited for, and embedded
+   * binaries wait for the binary section at the end. Small files are
+   * read outright. The default is disabled.
+   *
+   * @param b true to read ahead, false otherwise
+   */
+  public void setReadAheadEnabled(boolean b) {
+    readAheadEnabled = b;
+  }
+
+
   /**
    * Generates a decryption key for formats after 88a.
    *
@@ -105,6 +235,10 @@ public class OpenUHSLib {
    * @return the decrypted text
    */
   public String decryptString(String input) {
+    return decryptHintString(input);
+  }
+
+  private static String decryptHintString(String input) {
     StringBuffer tmp = new StringBuffer(input.length());
 
     for (int i=0; i < input.length(); i++) {
@@ -128,14 +262,20 @@ public class OpenUHSLib {
    * @return the decrypted text
    */
   public String decryptNestString(String input, int[] key) {
+    return decryptNestHintString(input, key);
+  }
+
+  private static String decryptNestHintString(String input, int[] key) {
+    if (key.length == 0) return input;  // A file with no title has no key
     StringBuffer tmp = new StringBuffer(input.length());
     int tmpChar = 0;
 
     for (int i=0; i < input.length(); i++) {
       int codeoffset = i % key.length;
       tmpChar = input.charAt(i) - (key[codeoffset] ^ (i + 40));
-      while (tmpChar<32) {
-        tmpChar += 96;
+      // The offset grows with i, so wrap in one step rather than looping
+      if (tmpChar<32) {
+        tmpChar += ((32-tmpChar+95)/96)*96;
       }
       tmp.append((char)tmpChar);
     }
@@ -152,6 +292,7 @@ public class OpenUHSLib {
    * @return the decrypted text
    */
   public String decryptTextHunk(String input, int[] key) {
+    if (key.length == 0) return input;
     StringBuffer tmp = new StringBuffer(input.length());
     int tmpChar = 0;
 
@@ -181,6 +322,19 @@ public class OpenUHSLib {
    */
   public UHSRootNode parseFile(String fileName, int auxStyle) {
     if (auxStyle != AUX_NORMAL && auxStyle != AUX_IGNORE && auxStyle != AUX_NEST) return null;
+    resetLimits();
+    try {
+      return parseFileWithinLimits(fileName, auxStyle);
+    }
+    finally {
+      endLimits();
+    }
+  }
+
+  /**
+   * Does the work of parseFile(), while limits are counted.
+   */
+  private UHSRootNode parseFileWithinLimits(String fileName, int auxStyle) {
     logHeader = 0; logLine = -1;
 
     String tmp = "";
@@ -190,18 +344,31 @@ public class OpenUHSLib {
     int startHintSection = 0;
     int endHintSection = 0;
 
-    ArrayList uhsFileArray = new ArrayList();
+    LineFeed uhsFileArray = new LineFeed();
     String name = "";
 
-    long rawOffset = -1;
-    byte[] rawuhs = null;
+    // Line offsets are only needed to write a table of contents
+    UHSTocIndex newToc = null;
+    long[] lineOffsets = null;
+    int lineBase = 0;
+    if (tocEnabled && auxStyle != AUX_IGNORE) {
+      try {
+        if (UHSTocIndex.load(fileName) == null) newToc = new UHSTocIndex();
+      }
+      catch (IOException e) {
+        newToc = new UHSTocIndex();
+      }
+      if (newToc != null) lineOffsets = new long[1024];
+    }
 
+    UHSLineReader inFile = null;
     try {
-      RandomAccessFile inFile = new RandomAccessFile(fileName, "r");
+      inFile = new UHSLineReader(fileName);
+      checkFileSize(inFile.length());
 
       logHeader++;
       tmp = inFile.readLine();
-      if (!tmp.equals("UHS")) {
+      if (tmp == null || !tmp.equals("UHS")) {
         if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Not a UHS file!", logHeader, null);
         return null;
       }
@@ -219,26 +386,280 @@ public class OpenUHSLib {
       tmp = inFile.readLine();
       endHintSection = Integer.parseInt(tmp);
 
-      //There's a hunk of binary referenced by offset at the end of 91a and newer files
-      //One can skip to it by searching for 0x1Ah.
-      byte tmpByte = -1;
-      while ((tmpByte = (byte)inFile.read()) != -1 && tmpByte != 0x1a) {
-        inFile.getChannel().position( inFile.getChannel().position()-1 );
-        logLine++;
-        tmp = inFile.readLine();
-        uhsFileArray.add(tmp);
+      if (readAheadEnabled && inFile.length() > READ_AHEAD_MIN_SIZE) {
+        startReadingAhead(inFile, uhsFileArray, lineOffsets);
+        inFile = null;  //The reading thread closes it
+      } else {
+        readLines(inFile, uhsFileArray, lineOffsets);
+      }
+    }
+    catch (FileNotFoundException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "No file", logHeader+logLine+1, e);
+      return null;
+    }
+    catch (IOException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not read file", logHeader+logLine+1, e);
+      return null;
+    }
+    catch (NumberFormatException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse header", logHeader+logLine+1, e);
+      return null;
+    }
+    catch (LimitException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, e.getMessage(), logHeader+logLine+1, null);
+      return null;
+    }
+    finally {
+      if (inFile != null) inFile.close();
+    }
+
+
+    try {
+      lineFeed = uhsFileArray;
+
+      boolean version88a = true;
+      for (int i=Math.max(0, endHintSection-1+1); uhsFileArray.hasLine(i); i++) {
+        if ( ((String)uhsFileArray.get(i)).equals("** END OF 88A FORMAT **") ) {
+          version88a = false;
+          lineBase = i;
+
+          //Since v91a, the line count starts here, after the old-style 88a section and its "end of" comment.
+          logHeader += i;
+          uhsFileArray.dropLines(i);
+          break;
+        }
+      }
+
+
+      UHSRootNode rootNode = null;
+      if (version88a) {
+        rootNode = parse88Format(uhsFileArray, name, endHintSection);
+      } else {
+        String tocName = (uhsFileArray.hasLine(2) ? (String)uhsFileArray.get(2) : "");
+
+        // While reading ahead, the binary section's offset isn't known yet
+        // So offsets stay relative to the file, until readBinaryHunk() waits for it
+        byte[] rawuhs = null;
+        long rawOffset = 0;
+        if (!uhsFileArray.isReadingAhead()) {
+          rawuhs = uhsFileArray.getRawBytes();
+          rawOffset = uhsFileArray.getRawOffset();
+        }
+
+        tocIndex = newToc;
+        rootNode = parse9xFormat(uhsFileArray, rawuhs, rawOffset, auxStyle);
+        tocIndex = null;
+
+        if (rootNode != null && newToc != null) {
+          newToc.finish(tocName, uhsFileArray.getRawOffset(), uhsFileArray.getLineOffsets(), lineBase);
+          try {
+            newToc.write(fileName);
+          }
+          catch (IOException e) {
+            if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not write table of contents", 0, e);
+          }
+        }
+      }
+      return rootNode;
+    }
+    catch (ReadException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not read file", logHeader+logLine+1, e);
+      return null;
+    }
+    catch (LimitException e) {
+      // Reading ahead hit a limit before the parse got anywhere to catch it
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, e.getMessage(), logHeader+logLine+1, null);
+      return null;
+    }
+    finally {
+      tocIndex = null;
+      lineFeed = null;
+      uhsFileArray.cancel();
+    }
+  }
+
+
+  /**
+   * Reads the text lines after a 9x/88a header, then the binary section.
+   * <br />While reading ahead, this runs on another thread, so it mustn't log.
+   *
+   * @param inFile a reader positioned after the header
+   * @param feed a feed to fill and finish
+   * @param lineOffsets an array to record each line's file offset in, or null
+   */
+  private void readLines(UHSLineReader inFile, LineFeed feed, long[] lineOffsets) throws IOException {
+    ArrayList batch = new ArrayList();
+    int lineCount = 0;
+    long textLength = 0;
+
+    //There's a hunk of binary referenced by offset at the end of 91a and newer files
+    //One can skip to it by searching for 0x1Ah.
+    //A line starting with 0xFFh has always ended the text as well.
+    int tmpByte = -1;
+    while ((tmpByte = inFile.peek()) != -1 && tmpByte != 0xff && tmpByte != 0x1a) {
+      if (!feed.isReadingAhead()) logLine++;
+      if (lineOffsets != null) {
+        if (lineCount == lineOffsets.length) {
+          long[] newOffsets = new long[lineOffsets.length*2];
+          System.arraycopy(lineOffsets, 0, newOffsets, 0, lineOffsets.length);
+          lineOffsets = newOffsets;
+        }
+        lineOffsets[lineCount] = inFile.getPosition();
+      }
+      String tmp = inFile.readLine();
+      batch.add(tmp);
+      lineCount++;
+      textLength += tmp.length();
+      checkTextLength(textLength);
+
+      // Hand lines over in batches, rather than waking the parser for each
+      if ((lineCount & 0x3ff) == 0) {
+        checkTime();
+        feed.addLines(batch);
+        batch.clear();
+        if (feed.isCancelled()) return;
+      }
+    }
+    feed.addLines(batch);
+    inFile.read();  // Skip the terminator
+
+    byte[] rawuhs = null;
+    long rawOffset = inFile.getPosition();
+    long binSize = inFile.length()-rawOffset;
+    if (binSize > 0 && binSize <= Integer.MAX_VALUE) {
+      rawuhs = inFile.readRemaining();
+    }
+    else
+      rawOffset = -1;
+    feed.finish(rawuhs, rawOffset, lineOffsets);
+  }
+
+  /**
+   * Calls readLines() on another thread, which closes the reader when done.
+   */
+  private void startReadingAhead(final UHSLineReader inFile, final LineFeed feed, final long[] lineOffsets) {
+    feed.setReadingAhead(true);
+    Thread readerThread = new Thread("UHSLineFeed") {
+      public void run() {
+        try {
+          readLines(inFile, feed, lineOffsets);
+        }
+        catch (Throwable e) {
+          feed.fail(e);
+        }
+        finally {
+          inFile.close();
+        }
       }
+    };
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
 
-      rawOffset = inFile.getChannel().position();
-      long binSize = inFile.length()-rawOffset;
-      if (binSize > 0 && binSize <= Integer.MAX_VALUE) {
-        rawuhs = new byte[(int)binSize];
-        inFile.readFully(rawuhs);
+  /**
+   * Reads a UHS file's metadata without parsing its nodes.
+   * <br />Only the header and the top-level hunk headers are examined.
+   * Hunk bodies are skipped by their line counts, except for the
+   * master subject's title and the version and info hunks.
+   * <br />Nothing is decrypted, and the binary section isn't read.
+   *
+   * @param fileName the file to probe
+   * @return the metadata, or null if the file could not be read
+   * @see #parseFile(String, int) parseFile(String, int)
+   */
+  public UHSMetadata probeFile(String fileName) {
+    logHeader = 0; logLine = -1;
+
+    String tmp = "";
+    UHSMetadata metadata = null;
+    PushbackInputStream inStream = null;
+    try {
+      inStream = new PushbackInputStream(new BufferedInputStream(new FileInputStream(fileName)), 1);
+
+      logHeader++;
+      tmp = readProbeLine(inStream);
+      if (!"UHS".equals(tmp)) {
+        if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Not a UHS file!", logHeader, null);
+        return null;
       }
-      else
-        rawOffset = -1;
 
-      inFile.close();
+      logHeader++;
+      String name = readProbeLine(inStream);
+
+      logHeader++;
+      tmp = readProbeLine(inStream);    //Skip the startHintSection
+
+      logHeader++;
+      tmp = readProbeLine(inStream);
+      int endHintSection = Integer.parseInt(tmp);
+
+      logLine += skipProbeLines(inStream, endHintSection);
+
+      boolean version88a = true;
+      while ((tmp = readProbeLine(inStream)) != null) {
+        logLine++;
+        if (tmp.equals("** END OF 88A FORMAT **")) {
+          version88a = false;
+          break;
+        }
+      }
+      if (version88a) {
+        metadata = new UHSMetadata();
+          metadata.setTitle(name);
+          metadata.setFormatVersion("88a");
+        return metadata;
+      }
+
+      // The version and info parsers record into this root's metadata
+      UHSRootNode scratchNode = new UHSRootNode();
+      metadata = scratchNode.getMetadata();
+      int probeLine = logLine;
+      boolean masterHunk = true;
+
+      while ((tmp = readProbeLine(inStream)) != null) {
+        probeLine++;
+        String type = lexHunkHeader(tmp);
+        if (type == null) continue;
+        int innerCount = getHunkCount(tmp) - 1;
+
+        if (masterHunk) {
+          masterHunk = false;
+          String title = readProbeLine(inStream);
+          if (title == null) break;
+          probeLine++;
+          innerCount--;
+          if (type.equals("subject")) {
+            UHSNode titleNode = new UHSNode("Subject");
+              titleNode.setContent(title, UHSNode.STRING);
+              parseTextEscapes(titleNode);
+            metadata.setTitle((String)titleNode.getContent());
+          }
+          probeLine += skipProbeLines(inStream, innerCount);
+        }
+        else if (type.equals("version") || type.equals("info")) {
+          ArrayList hunkArray = new ArrayList();
+          hunkArray.add(tmp);
+          for (int j=0; j < innerCount; j++) {
+            String hunkLine = readProbeLine(inStream);
+            if (hunkLine == null) break;
+            hunkArray.add(hunkLine);
+          }
+          if (hunkArray.size() <= innerCount) break;
+          probeLine += innerCount;
+
+          if (type.equals("version")) {
+            parseVersionNode(hunkArray, null, -1, scratchNode, scratchNode, null, 0);
+          } else {
+            parseInfoNode(hunkArray, null, -1, scratchNode, scratchNode, null, 0);
+          }
+        }
+        else {
+          probeLine += skipProbeLines(inStream, innerCount);
+        }
+        logLine = probeLine;
+      }
+      return metadata;
     }
     catch (FileNotFoundException e) {
       if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "No file", logHeader+logLine+1, e);
@@ -252,30 +673,60 @@ public class OpenUHSLib {
       if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse header", logHeader+logLine+1, e);
       return null;
     }
+    finally {
+      try {if (inStream != null) inStream.close();}
+      catch (IOException e) {}
+    }
+  }
 
 
-    boolean version88a = true;
-    for (int i=endHintSection-1+1; i < uhsFileArray.size(); i++) {
-      if ( ((String)uhsFileArray.get(i)).equals("** END OF 88A FORMAT **") ) {
-        version88a = false;
+  /**
+   * Reads a line while probing, as RandomAccessFile.readLine() would.
+   *
+   * @return the line, or null at the end of the file or the start of the binary section
+   */
+  private String readProbeLine(PushbackInputStream inStream) throws IOException {
+    int c = inStream.read();
+    if (c == -1 || c == 0x1a) return null;
 
-        //Since v91a, the line count starts here, after the old-style 88a section and its "end of" comment.
-        logHeader += i;
-        for (int j=1; j <= i; j++) {
-          uhsFileArray.remove(0);
-        }
+    StringBuffer buf = new StringBuffer();
+    while (c != -1 && c != '\n') {
+      if (c == '\r') {
+        int next = inStream.read();
+        if (next != '\n' && next != -1) inStream.unread(next);
         break;
       }
+      buf.append((char)c);
+      c = inStream.read();
     }
+    return buf.toString();
+  }
 
 
-    UHSRootNode rootNode = null;
-    if (version88a) {
-      rootNode = parse88Format(uhsFileArray, name, endHintSection);
-    } else {
-      rootNode = parse9xFormat(uhsFileArray, rawuhs, rawOffset, auxStyle);
+  /**
+   * Skips lines while probing, without building strings.
+   *
+   * @param count the number of lines to skip
+   * @return the number of lines actually skipped
+   */
+  private int skipProbeLines(PushbackInputStream inStream, int count) throws IOException {
+    int skipped = 0;
+    while (skipped < count) {
+      int c = inStream.read();
+      if (c == -1) break;
+      if (c == 0x1a) {inStream.unread(c); break;}
+
+      while (c != -1 && c != '\n') {
+        if (c == '\r') {
+          int next = inStream.read();
+          if (next != '\n' && next != -1) inStream.unread(next);
+          break;
+        }
+        c = inStream.read();
+      }
+      skipped++;
     }
-    return rootNode;
+    return skipped;
   }
 
 
@@ -318,11 +769,14 @@ public class OpenUHSLib {
     try {
       UHSRootNode rootNode = new UHSRootNode();
         rootNode.setContent(name, UHSNode.STRING);
+        rootNode.getMetadata().setTitle(name);
+        rootNode.getMetadata().setFormatVersion("88a");
       int fudge = 1; //The format's 1-based, the array's 0-based
 
       int questionSectionStart = Integer.parseInt(getLoggedString(uhsFileArray, 1)) - fudge;
 
       for (int s=0; s < questionSectionStart; s+=2) {
+        countNode();
         UHSNode currentSubject = new UHSNode("Subject");
           currentSubject.setContent(decryptString(getLoggedString(uhsFileArray, s)), UHSNode.STRING);
           rootNode.addChild(currentSubject);
@@ -332,6 +786,7 @@ public class OpenUHSLib {
           //On the last loop, s+3 is a question's first hint
 
         for (int q=firstQuestion; q < nextSubjectsFirstQuestion; q+=2) {
+          countNode();
           UHSNode currentQuestion = new UHSNode("Question");
             currentQuestion.setContent(decryptString(getLoggedString(uhsFileArray, q)) +"?", UHSNode.STRING);
             currentSubject.addChild(currentQuestion);
@@ -347,6 +802,7 @@ public class OpenUHSLib {
           }
 
           for (int h=firstHint; h < lastHint; h++) {
+            countNode();
             UHSNode currentHint = new UHSNode("Hint");
               currentHint.setContent(decryptString(getLoggedString(uhsFileArray, h)), UHSNode.STRING);
               currentQuestion.addChild(currentHint);
@@ -376,12 +832,21 @@ public class OpenUHSLib {
       newNode.setContent(tmpContent.toString(), UHSNode.STRING);
         creditNode.addChild(newNode);
 
+      rootNode.indexNodes();
       return rootNode;
     }
     catch (NumberFormatException e) {
       if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse nodes", logHeader+logLine+1, e);
       return null;
     }
+    catch (IndexOutOfBoundsException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse nodes, the file is truncated", logHeader+logLine+1, e);
+      return null;
+    }
+    catch (LimitException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, e.getMessage(), logHeader+logLine+1, null);
+      return null;
+    }
   }
 
 
@@ -436,9 +901,18 @@ public class OpenUHSLib {
       int index = 1;
       index += buildNodes(uhsFileArray, rawuhs, rawOffset, rootNode, rootNode, key, index);
 
+      UHSNode masterNode = rootNode.getChild(0);
+      if (masterNode != null && masterNode.getContentType() == UHSNode.STRING) {
+        rootNode.getMetadata().setTitle((String)masterNode.getContent());
+      }
+
       if (auxStyle != AUX_IGNORE) {
         if (auxStyle == AUX_NEST) {
           UHSNode tmpChildNode = rootNode.getChild(0);
+          if (tmpChildNode == null) {
+            if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not find the master subject", logHeader+1, null);
+            return null;
+          }
           rootNode.setChildren(tmpChildNode.getChildren());
           rootNode.setContent(name, UHSNode.STRING);
 
@@ -450,19 +924,33 @@ public class OpenUHSLib {
           index += buildNodes(uhsFileArray, rawuhs, rawOffset, rootNode, rootNode, key, index);
         }
       }
+      rootNode.indexNodes();
       return rootNode;
     }
     catch (NumberFormatException e) {
       if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse nodes", logHeader+logLine+1, e);
       return null;
     }
+    catch (IndexOutOfBoundsException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse nodes, the file is truncated", logHeader+logLine+1, e);
+      return null;
+    }
+    catch (LimitException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, e.getMessage(), logHeader+logLine+1, null);
+      return null;
+    }
   }
 
 
   /**
-   * Recursively parses UHS newer than 88a.
+   * Parses a hunk of UHS newer than 88a, including any hunks it contains.
    * <br />This recognizes various types of hints, and runs specialized methods to decode them.
+   * <br />Parsers are looked up by the exact type named in the hunk's header.
    * <br />Unrecognized hints are harmlessly omitted.
+   * <br />
+   * <br />Subjects and nested hints are walked with an explicit stack
+   * of frames rather than by recursion, so nesting depth is limited by
+   * the heap, not the thread's stack.
    *
    * @param uhsFileArray array of all available lines in the file
    * @param rawuhs array of raw bytes at the end of the file
@@ -472,62 +960,191 @@ public class OpenUHSLib {
    * @param key this file's hint decryption key
    * @param startIndex the line number to start parsing from
    * @return the number of lines consumed from the file in parsing children
+   * @see #setHunkParser(String, UHSHunkParser) setHunkParser(String, UHSHunkParser)
    */
   public int buildNodes(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex) {
-    int index = startIndex;
+    ArrayList frames = new ArrayList();
+    int result = startHunk(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex, frames);
+    if (result == -1) result = runFrames(uhsFileArray, rawuhs, rawOffset, rootNode, key, frames);
+    return result;
+  }
 
-    String tmp = getLoggedString(uhsFileArray, index);
-    if (tmp.matches("[0-9]+ [A-Za-z]+$") == true) {
-      if (tmp.endsWith("comment")) {
-        index += parseCommentNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("credit")) {
-        index += parseCreditNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith(" hint")) {
-        index += parseHintNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("nesthint")) {
-        index += parseNestHintNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("subject")) {
-        index += parseSubjectNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("link")) {
-        index += parseLinkNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("text")) {
-        index += parseTextNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("hyperpng")) {
-        index += parseHyperImgNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("gifa")) {
-        index += parseHyperImgNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("sound")) {
-        index += parseSoundNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
-      }
-      else if (tmp.endsWith("blank")) {
-        index += parseBlankNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
+  /**
+   * Parses a hunk, or opens a frame for it if it contains other hunks.
+   *
+   * @param frames the stack of open frames
+   * @return the number of lines consumed, or -1 if a frame was pushed
+   */
+  private int startHunk(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex, ArrayList frames) {
+    String tmp = getLoggedString(uhsFileArray, startIndex);
+    String type = lexHunkHeader(tmp);
+    if (type == null) return 1;
+
+    checkTime();
+    countNode();
+
+    UHSHunkParser parser = getHunkParser(type);
+    if (parser instanceof BuiltInHunkParser) {
+      int hunkType = ((BuiltInHunkParser)parser).hunkType;
+      if (hunkType == HUNK_SUBJECT || hunkType == HUNK_NESTHINT) {
+        checkDepth(frames.size()+1);
+        ParseFrame frame = openFrame(uhsFileArray, rootNode, currentNode, startIndex, hunkType, type);
+        frame.dispatched = true;
+        frames.add(frame);
+        return -1;
       }
-      else if (tmp.endsWith("version")) {
-        index += parseVersionNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
+    }
+
+    int count = 0;
+    if (parser != null) {
+      count = parser.parseHunk(this, uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+    }
+    else {
+      count = parseUnknownNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+    }
+
+    if (tocIndex != null) tocIndex.addHunk(startIndex, count, type, currentNode.getId());
+    return count;
+  }
+
+  /**
+   * Reads the header and title of a subject or nesthint hunk.
+   *
+   * @param hunkType HUNK_SUBJECT or HUNK_NESTHINT
+   * @param type the type as named in the header
+   * @return a frame, ready to parse the hunk's contents
+   */
+  private ParseFrame openFrame(ArrayList uhsFileArray, UHSRootNode rootNode, UHSNode currentNode, int startIndex, int hunkType, String type) {
+    int index = startIndex;
+    String tmp = getLoggedString(uhsFileArray, index);
+    index++;
+    int innerCount = getHunkCount(tmp) - 1;
+
+    UHSNode newNode = new UHSNode( (hunkType == HUNK_SUBJECT ? "Subject" : "NestHint") );
+      newNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
+      parseTextEscapes(newNode);
+      newNode.setId(startIndex);
+      currentNode.addChild(newNode);
+      rootNode.addLink(newNode);
+    index++;
+    innerCount--;
+
+    ParseFrame frame = new ParseFrame();
+      frame.hunkType = hunkType;
+      frame.type = type;
+      frame.parentNode = currentNode;
+      frame.node = newNode;
+      frame.startIndex = startIndex;
+      frame.index = index;
+      frame.innerCount = innerCount;
+      if (hunkType == HUNK_NESTHINT) frame.cipherLines = new ArrayList();
+    return frame;
+  }
+
+  /**
+   * Parses until the stack of frames is empty.
+   *
+   * @param frames the stack of open frames
+   * @return the number of lines consumed by the bottom frame
+   */
+  private int runFrames(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, int[] key, ArrayList frames) {
+    int result = 0;
+
+    while (frames.size() > 0) {
+      ParseFrame frame = (ParseFrame)frames.get(frames.size()-1);
+
+      boolean done = false;
+      if (frame.hunkType == HUNK_SUBJECT) done = stepSubjectFrame(uhsFileArray, rawuhs, rawOffset, rootNode, key, frame, frames);
+      else done = stepNestHintFrame(uhsFileArray, rawuhs, rawOffset, rootNode, key, frame, frames);
+      if (!done) continue;  //A child frame was pushed
+
+      frames.remove(frames.size()-1);
+      int count = frame.index + frame.innerCount - frame.startIndex;
+      if (tocIndex != null && frame.dispatched) tocIndex.addHunk(frame.startIndex, count, frame.type, frame.parentNode.getId());
+
+      if (frames.size() == 0) {
+        result = count;
+      } else {
+        ParseFrame parentFrame = (ParseFrame)frames.get(frames.size()-1);
+        if (parentFrame.hunkType == HUNK_SUBJECT) parentFrame.j += count;
+        else endEmbeddedHunk(parentFrame, count);
       }
-      else if (tmp.endsWith("info")) {
-        index += parseInfoNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
+    }
+    return result;
+  }
+
+  /**
+   * Parses a subject's embedded hunks.
+   *
+   * @return true if the subject is finished, false if a child frame was pushed
+   */
+  private boolean stepSubjectFrame(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, int[] key, ParseFrame frame, ArrayList frames) {
+    while (frame.j < frame.innerCount) {
+      int count = startHunk(uhsFileArray, rawuhs, rawOffset, rootNode, frame.node, key, frame.index+frame.j, frames);
+      if (count == -1) return false;
+      frame.j += count;
+    }
+    return true;
+  }
+
+  /**
+   * Parses a nested hint's hints and embedded hunks.
+   * <br />Decryption happens when hints are first read (see LazyHintNode).
+   * It preserves length, so whether a hint is empty is known now.
+   *
+   * @return true if the nested hint is finished, false if a child frame was pushed
+   */
+  private boolean stepNestHintFrame(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, int[] key, ParseFrame frame, ArrayList frames) {
+    while (frame.j < frame.innerCount) {
+      String tmp = getLoggedString(uhsFileArray, frame.index+frame.j);
+      if (tmp.equals("-")) {
+        //A hint, add last content
+        if (frame.hasContent) {
+          frame.node.addChild(newLazyHint(frame.cipherLines, key, frame.startIndex));
+          frame.cipherLines.clear();
+          frame.hasContent = false;
+        }
       }
-      else if (tmp.endsWith("incentive")) {
-        index += parseIncentiveNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
+      else if (tmp.equals("=")) {
+        //Nested hunk, add last content
+        if (frame.hasContent) {
+          frame.node.addChild(newLazyHint(frame.cipherLines, key, frame.startIndex));
+        }
+
+        int count = startHunk(uhsFileArray, rawuhs, rawOffset, rootNode, frame.node, key, frame.index+frame.j+1, frames);
+        if (count == -1) return false;  //Resumes in endEmbeddedHunk()
+        endEmbeddedHunk(frame, count);
+        continue;
       }
       else {
-        index += parseUnknownNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, index);
+        if (frame.hasContent || tmp.length() > 0) frame.cipherLines.add(tmp);
+        if (tmp.length() > 0) frame.hasContent = true;
       }
-    } else {index++;}
 
-    return index-startIndex;
+      if (frame.j == frame.innerCount-1 && frame.hasContent) {
+        frame.node.addChild(newLazyHint(frame.cipherLines, key, frame.startIndex));
+      }
+      frame.j++;
+    }
+    return true;
   }
 
+  /**
+   * Resumes a nested hint after one of its embedded hunks.
+   *
+   * @param count the number of lines the embedded hunk consumed
+   */
+  private void endEmbeddedHunk(ParseFrame frame, int count) {
+    frame.j += count;
+    if (frame.hasContent) {
+      frame.cipherLines.clear();
+      frame.hasContent = false;
+    }
+    //Skip the "=" line
+    frame.j++;
+  }
+
+
   /**
    * Replaces UHS escaped characters in a hint.
    * <br />Escapes have existed from version 88a onwards in most nodes' content and titles.
@@ -555,6 +1172,20 @@ public class OpenUHSLib {
   public void parseTextEscapes(UHSNode currentNode) {
     if (currentNode.getContentType() != UHSNode.STRING) return;
 
+    String result = decodeTextEscapes((String)currentNode.getContent(), errorHandler, this, logHeader+logLine+1);
+    currentNode.setContent(result, UHSNode.STRING);
+  }
+
+  /**
+   * Does the work of parseTextEscapes(UHSNode), without depending on the parse's state.
+   *
+   * @param content the text to decode
+   * @param eh an error handler to report unknown escapes to, or null
+   * @param source the source to report them as coming from
+   * @param line the line to report them at
+   * @return the decoded text
+   */
+  private static String decodeTextEscapes(String content, UHSErrorHandler eh, Object source, int line) {
     char[] linebreak = new char[] {'^','b','r','e','a','k','^'};
     char[] accentPrefix = new char[] {'#','a','+'};
     char[] accentSuffix = new char[] {'#','a','-'};
@@ -563,7 +1194,7 @@ public class OpenUHSLib {
     char[] wnlin = new char[] {'#','w','-'};
 
     StringBuffer buf = new StringBuffer();
-    char[] tmp = ((String)currentNode.getContent()).toCharArray();
+    char[] tmp = content.toCharArray();
     String breakStr = " ";
     char[] chunkA = null;
     char[] chunkB = null;
@@ -637,7 +1268,7 @@ public class OpenUHSLib {
               buf.append(''); c+=7; continue;
             }
             else {
-              if (errorHandler != null) errorHandler.log(UHSErrorHandler.INFO, this, "Unknown accent: "+ tmp[c+3] + tmp[c+4], logHeader+logLine+1, null);
+              if (eh != null) eh.log(UHSErrorHandler.INFO, source, "Unknown accent: "+ tmp[c+3] + tmp[c+4], line, null);
             }
           }
         }
@@ -654,48 +1285,31 @@ public class OpenUHSLib {
       buf.append(tmp[c]);
     }
 
-    currentNode.setContent(buf.toString(), UHSNode.STRING);
+    return buf.toString();
   }
 
   /**
    * Generates a subject UHSNode and its contents.
    *
-   * <pre> # subject
-   * title
-   * embedded hunk
-   * embedded hunk
-   * embedded hunk</pre>
-   *
-   * @param uhsFileArray array of all available lines in the file
-   * @param rawuhs array of raw bytes at the end of the file
-   * @param rawOffset offset to the raw bytes from the beginning of the file
-   * @param rootNode an existing root node
-   * @param currentNode an existing node to add children to
-   * @param key this file's hint decryption key
-   * @param startIndex the line number to start parsing from
-   * @return the number of lines consumed from the file in parsing children
-   */
-  public int parseSubjectNode(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex) {
-    int index = startIndex;
-    String tmp = getLoggedString(uhsFileArray, index);
-    index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
-
-    UHSNode newNode = new UHSNode("Subject");
-      newNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
-      parseTextEscapes(newNode);
-      newNode.setId(startIndex);
-      currentNode.addChild(newNode);
-      rootNode.addLink(newNode);
-    index++;
-    innerCount--;
-
-    for (int j=0; j < innerCount;) {
-      j += buildNodes(uhsFileArray, rawuhs, rawOffset, rootNode, newNode, key, index+j);
-    }
-
-    index += innerCount;
-    return index-startIndex;
+   * <pre> # subject
+   * title
+   * embedded hunk
+   * embedded hunk
+   * embedded hunk</pre>
+   *
+   * @param uhsFileArray array of all available lines in the file
+   * @param rawuhs array of raw bytes at the end of the file
+   * @param rawOffset offset to the raw bytes from the beginning of the file
+   * @param rootNode an existing root node
+   * @param currentNode an existing node to add children to
+   * @param key this file's hint decryption key
+   * @param startIndex the line number to start parsing from
+   * @return the number of lines consumed from the file in parsing children
+   */
+  public int parseSubjectNode(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex) {
+    ArrayList frames = new ArrayList();
+    frames.add(openFrame(uhsFileArray, rootNode, currentNode, startIndex, HUNK_SUBJECT, "subject"));
+    return runFrames(uhsFileArray, rawuhs, rawOffset, rootNode, key, frames);
   }
 
   /**
@@ -723,66 +1337,9 @@ public class OpenUHSLib {
    * @see #decryptNestString(String, int[]) decryptNestString(String, int[])
    */
   public int parseNestHintNode(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex) {
-    String breakChar = "^break^";
-
-    int index = startIndex;
-    String tmp = getLoggedString(uhsFileArray, index);
-    index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
-
-    UHSNode hintNode = new UHSNode("NestHint");
-      hintNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
-      parseTextEscapes(hintNode);
-      hintNode.setId(startIndex);
-      currentNode.addChild(hintNode);
-      rootNode.addLink(hintNode);
-    index++;
-    innerCount--;
-
-    StringBuffer tmpContent = new StringBuffer();
-    UHSNode newNode = new UHSNode("Hint");
-
-    for (int j=0; j < innerCount; j++) {
-      tmp = getLoggedString(uhsFileArray, index+j);
-      if (tmp.equals("-")) {
-        //A hint, add last content
-        if (tmpContent.length() > 0) {
-          newNode.setContent(tmpContent.toString(), UHSNode.STRING);
-          parseTextEscapes(newNode);
-          hintNode.addChild(newNode);
-          newNode = new UHSNode("Hint");
-          tmpContent.delete(0, tmpContent.length());
-        }
-      }
-      else if (tmp.equals("=")) {
-        //Nested hunk, add last content
-        if (tmpContent.length() > 0) {
-          newNode.setContent(tmpContent.toString(), UHSNode.STRING);
-          parseTextEscapes(newNode);
-          hintNode.addChild(newNode);
-        }
-
-        j += buildNodes(uhsFileArray, rawuhs, rawOffset, rootNode, hintNode, key, index+j+1);
-
-        if (tmpContent.length() > 0) {
-          newNode = new UHSNode("Hint");
-          tmpContent.delete(0, tmpContent.length());
-        }
-      }
-      else {
-        if (tmpContent.length() > 0) tmpContent.append(breakChar);
-        tmpContent.append( decryptNestString(getLoggedString(uhsFileArray, index+j), key) );
-      }
-
-      if (j == innerCount-1 && tmpContent.length() > 0) {
-        newNode.setContent(tmpContent.toString(), UHSNode.STRING);
-        parseTextEscapes(newNode);
-        hintNode.addChild(newNode);
-      }
-    }
-
-    index += innerCount;
-    return index-startIndex;
+    ArrayList frames = new ArrayList();
+    frames.add(openFrame(uhsFileArray, rootNode, currentNode, startIndex, HUNK_NESTHINT, "nesthint"));
+    return runFrames(uhsFileArray, rawuhs, rawOffset, rootNode, key, frames);
   }
 
   /**
@@ -805,12 +1362,10 @@ public class OpenUHSLib {
    * @see #decryptString(String) decryptNestString(String)
    */
   public int parseHintNode(ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex) {
-    String breakChar = "^break^";
-
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1 - 1;
+    int innerCount = getHunkCount(tmp) - 1 - 1;
 
     UHSNode hintNode = new UHSNode("Hint");
       hintNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -820,31 +1375,26 @@ public class OpenUHSLib {
       rootNode.addLink(hintNode);
     index++;
 
-    StringBuffer tmpContent = new StringBuffer();
-    UHSNode newNode = new UHSNode("Hint");
+    // Decryption happens when hints are first read (see LazyHintNode)
+    // It preserves length, so whether a hint is empty is known now
+    ArrayList cipherLines = new ArrayList();
+    boolean hasContent = false;
 
     for (int j=0; j < innerCount; j++) {
       tmp = getLoggedString(uhsFileArray, index+j);
       if (tmp.equals("-")) {
-        if (tmpContent.length() > 0) {
-          newNode.setContent(tmpContent.toString(), UHSNode.STRING);
-          parseTextEscapes(newNode);
-          hintNode.addChild(newNode);
-          newNode = new UHSNode("Hint");
-          tmpContent.delete(0, tmpContent.length());
+        if (hasContent) {
+          hintNode.addChild(newLazyHint(cipherLines, null, startIndex));
+          cipherLines.clear();
+          hasContent = false;
         }
       } else {
-        if (tmpContent.length() > 0) tmpContent.append(breakChar);
-
-        tmp = getLoggedString(uhsFileArray, index+j);
-        if (tmp.equals(" ")) tmpContent.append("\n \n");
-        else tmpContent.append( decryptString(tmp) );
+        if (hasContent || tmp.length() > 0) cipherLines.add(tmp);
+        if (tmp.length() > 0) hasContent = true;
       }
 
-      if (j == innerCount-1 && tmpContent.length() > 0) {
-        newNode.setContent(tmpContent.toString(), UHSNode.STRING);
-        parseTextEscapes(newNode);
-        hintNode.addChild(newNode);
+      if (j == innerCount-1 && hasContent) {
+        hintNode.addChild(newLazyHint(cipherLines, null, startIndex));
       }
     }
 
@@ -876,7 +1426,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode commentNode = new UHSNode("Comment");
       commentNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -926,7 +1476,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode creditNode = new UHSNode("Credit");
       creditNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -975,7 +1525,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     tmp ="";
     UHSNode textNode = new UHSNode("Text");
@@ -1036,7 +1586,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode newNode = new UHSNode("Link");
       newNode.setContent(getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -1109,7 +1659,7 @@ public class OpenUHSLib {
 
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     String type = "";
     if (tmp.indexOf("hyperpng") != -1) type = "Hyperpng";
@@ -1168,9 +1718,10 @@ public class OpenUHSLib {
 
       tmp = getLoggedString(uhsFileArray, index+j);
       j++;
-      if (tmp.matches("[0-9]+ [A-Za-z]+$") == true) {
-        int innerInnerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
-        if (tmp.endsWith("overlay")) {
+      String innerType = lexHunkHeader(tmp);
+      if (innerType != null) {
+        int innerInnerCount = getHunkCount(tmp) - 1;
+        if (innerType.equals("overlay")) {
           title = getLoggedString(uhsFileArray, index+j);
           j++;
           tokens = (getLoggedString(uhsFileArray, index+j)).split(" ");
@@ -1195,7 +1746,7 @@ public class OpenUHSLib {
           hotspotNode.addChild(newNode);
           hotspotNode.setCoords(newNode, new int[] {zoneX1, zoneY1, zoneX2-zoneX1, zoneY2-zoneY1, posX, posY});
         }
-        else if (tmp.endsWith("link")) {
+        else if (innerType.equals("link")) {
           UHSNode newNode = new UHSNode("Link");
           newNode.setContent(getLoggedString(uhsFileArray, index+j), UHSNode.STRING);
           parseTextEscapes(newNode);
@@ -1240,7 +1791,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     tmp ="";
     UHSNode soundNode = new UHSNode("Sound");
@@ -1288,7 +1839,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode newNode = new UHSNode("Blank");
       newNode.setContent("^^^", UHSNode.STRING);
@@ -1333,7 +1884,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode versionNode = new UHSNode("Version");
       versionNode.setContent("Version: "+ getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -1355,6 +1906,11 @@ public class OpenUHSLib {
     parseTextEscapes(newNode);
     versionNode.addChild(newNode);
 
+    String versionTitle = ((String)versionNode.getContent()).substring(9);
+    String versionText = (String)newNode.getContent();
+    rootNode.getMetadata().setFormatVersion( (versionTitle.length()>0?versionTitle:null) );
+    rootNode.getMetadata().setCompilerVersion( (versionText.length()>0?versionText:null) );
+
     index += innerCount;
     return index-startIndex;
   }
@@ -1392,7 +1948,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode infoNode = new UHSNode("Info");
       infoNode.setContent("Info: "+ getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -1484,6 +2040,14 @@ public class OpenUHSLib {
 
       newNode.setContent(tmpContent.toString(), UHSNode.STRING);
       infoNode.addChild(newNode);
+
+      UHSMetadata metadata = rootNode.getMetadata();
+        metadata.setLength(getInfoValue(lengthBuf, "length="));
+        metadata.setDate(getInfoValue(dateBuf, "date="));
+        metadata.setTime(getInfoValue(timeBuf, "time="));
+        metadata.setAuthor(getInfoValue(authorBuf, "author="));
+        metadata.setPublisher(getInfoValue(publisherBuf, "publisher="));
+        metadata.setCopyright(getInfoValue(copyrightBuf, "copyright="));
     }
 
     index += innerCount;
@@ -1491,6 +2055,27 @@ public class OpenUHSLib {
   }
 
 
+  /**
+   * Strips keys from the lines collected for an info field.
+   *
+   * @param buf newline-separated "key=value" lines
+   * @param key the key, including '='
+   * @return the values, newline-separated, or null if there were none
+   */
+  private String getInfoValue(StringBuffer buf, String key) {
+    if (buf.length() == 0) return null;
+
+    StringBuffer result = new StringBuffer();
+    String[] lines = buf.toString().split("\n");
+    for (int i=0; i < lines.length; i++) {
+      if (result.length() > 0) result.append("\n");
+      if (lines[i].startsWith(key)) result.append(lines[i].substring(key.length()));
+      else result.append(lines[i]);
+    }
+    return result.toString();
+  }
+
+
   /**
    * Generates an incentive UHSNode.
    * <br />This node lists IDs to show/block if the reader is unregistered.
@@ -1517,7 +2102,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     UHSNode incentiveNode = new UHSNode("Incentive");
       incentiveNode.setContent("Incentive: "+ getLoggedString(uhsFileArray, index), UHSNode.STRING);
@@ -1555,7 +2140,7 @@ public class OpenUHSLib {
     int index = startIndex;
     String tmp = getLoggedString(uhsFileArray, index);
     index++;
-    int innerCount = Integer.parseInt(tmp.substring(0, tmp.indexOf(" "))) - 1;
+    int innerCount = getHunkCount(tmp) - 1;
 
     if (errorHandler != null) errorHandler.log(UHSErrorHandler.INFO, this, "Unknown Hunk: "+ tmp, logHeader+logLine+1, null);
 
@@ -1569,7 +2154,7 @@ public class OpenUHSLib {
 
 
   /**
-   * Recursively prints the indented contents of a node and its children.
+   * Prints the indented contents of a node and its children.
    *
    * @param currentNode a node to start printing from
    * @param indent indention prefix
@@ -1577,19 +2162,26 @@ public class OpenUHSLib {
    * @param outStream a stream to print to
    */
   public void printNode(UHSNode currentNode, String indent, String spacer, PrintStream outStream) {
-    int id = currentNode.getId();
-    String idStr = (id==-1?"":"^"+id+"^: ");
-    String linkStr = (!currentNode.isLink()?"":" (^Link to "+ currentNode.getLinkTarget() +"^)");
-
-    if (currentNode.getContentType() == UHSNode.STRING)
-      outStream.println(indent + idStr + currentNode.getContent() + linkStr);
-    else if (currentNode.getContentType() == UHSNode.IMAGE)
-      outStream.println(indent + idStr +"^IMAGE^"+ linkStr);
-    else if (currentNode.getContentType() == UHSNode.AUDIO)
-      outStream.println(indent + idStr +"^AUDIO^"+ linkStr);
-
-    for (int i=0; i < currentNode.getChildCount(); i++) {
-      printNode(currentNode.getChild(i), indent+spacer, spacer, outStream);
+    ArrayList indents = new ArrayList();
+      indents.add(indent);
+
+    UHSNodeIterator it = new UHSNodeIterator(currentNode, UHSNodeIterator.PREORDER);
+    while (it.hasNext()) {
+      UHSNode tmpNode = it.nextNode();
+      int depth = it.getDepth();
+      if (depth == indents.size()) indents.add(indents.get(depth-1) + spacer);
+      String tmpIndent = (String)indents.get(depth);
+
+      int id = tmpNode.getId();
+      String idStr = (id==-1?"":"^"+id+"^: ");
+      String linkStr = (!tmpNode.isLink()?"":" (^Link to "+ tmpNode.getLinkTarget() +"^)");
+
+      if (tmpNode.getContentType() == UHSNode.STRING)
+        outStream.println(tmpIndent + idStr + tmpNode.getContent() + linkStr);
+      else if (tmpNode.getContentType() == UHSNode.IMAGE)
+        outStream.println(tmpIndent + idStr +"^IMAGE^"+ linkStr);
+      else if (tmpNode.getContentType() == UHSNode.AUDIO)
+        outStream.println(tmpIndent + idStr +"^AUDIO^"+ linkStr);
     }
   }
 
@@ -1603,10 +2195,41 @@ public class OpenUHSLib {
    * @param rawuhs array of bytes at the end of the file (after 0x1Ah)
    * @param offset starting index within the array (must be less than Integer.MAX_VALUE)
    * @param length the desired number of bytes to retrieve
-   * @return the relevant bytes, or null if the offset or length is invalid
+   * @return the relevant bytes, or null if the offset or length is invalid (or over the limit)
    */
   public byte[] readBinaryHunk(byte[] rawuhs, long offset, int length) {
-    if (offset < 0 || offset > Integer.MAX_VALUE || length < 0 || length > rawuhs.length)
+    if (rawuhs == null && lineFeed != null && lineFeed.isReadingAhead()) {
+      // The offset is relative to the file, so wait for the binary section
+      rawuhs = lineFeed.getRawBytes();
+      if (rawuhs == null) return null;
+      offset -= lineFeed.getRawOffset();
+    }
+
+    try {
+      checkBinarySize(length);
+    }
+    catch (LimitException e) {
+      if (limitsActive) throw e;
+      // Not within a parse, so nothing would catch it
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, e.getMessage(), 0, null);
+      return null;
+    }
+
+    if (rawuhs == null && binaryFile != null) {
+      // Materializing a single hunk, so read straight from the file
+      try {
+        if (offset < 0 || length < 0 || binaryFileOffset+offset+length > binaryFile.length())
+          return null;
+        byte[] result = new byte[length];
+        binaryFile.seek(binaryFileOffset+offset);
+        binaryFile.readFully(result);
+        return result;
+      }
+      catch (IOException e) {
+        return null;
+      }
+    }
+    if (rawuhs == null || offset < 0 || offset > Integer.MAX_VALUE || length < 0 || offset+length > rawuhs.length)
       return null;
     byte[] result = new byte[length];
     for (int i=0; i < length; i++) {
@@ -1616,8 +2239,455 @@ public class OpenUHSLib {
   }
 
 
+  /**
+   * Parses a single hunk of a 9x file, using its table of contents.
+   * <br />Only the hunk's own lines and binary data are read.
+   * Ids within the hunk match those of a full parse, so the
+   * result's links can be followed with further calls.
+   *
+   * @param fileName the hint file
+   * @param toc the file's table of contents
+   * @param id the hunk's id (e.g., a link target)
+   * @return the hunk's node, or null if it could not be parsed
+   * @see UHSTocIndex#load(String) UHSTocIndex.load(String)
+   */
+  public UHSNode parseHunk(String fileName, UHSTocIndex toc, int id) {
+    logHeader = 0; logLine = -1;
+    resetLimits();
+
+    int n = toc.indexOfId(id);
+    if (n == -1) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "No hunk with id "+ id, 0, null);
+      return null;
+    }
+
+    RandomAccessFile inFile = null;
+    try {
+      inFile = new RandomAccessFile(fileName, "r");
+      UHSLineReader lineReader = new UHSLineReader(inFile);
+      lineReader.seek(toc.getOffset(n));
+
+      LineWindow hunkArray = new LineWindow(id);
+      for (int i=0; i < toc.getSpan(n); i++) {
+        String tmp = lineReader.readLine();
+        if (tmp == null) break;
+        hunkArray.add(tmp);
+      }
+
+      UHSRootNode rootNode = new UHSRootNode();
+        rootNode.setContent("root", UHSNode.STRING);
+      int[] key = generateKey(toc.getName());
+
+      binaryFile = inFile;
+      binaryFileOffset = toc.getRawOffset();
+      buildNodes(hunkArray, null, toc.getRawOffset(), rootNode, rootNode, key, id);
+
+      return rootNode.getChild(0);
+    }
+    catch (IOException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not read hunk "+ id, 0, e);
+      return null;
+    }
+    catch (NumberFormatException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not parse hunk "+ id, 0, e);
+      return null;
+    }
+    catch (IndexOutOfBoundsException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Hunk "+ id +" is truncated", 0, e);
+      return null;
+    }
+    catch (LimitException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, e.getMessage(), 0, null);
+      return null;
+    }
+    finally {
+      endLimits();
+      binaryFile = null;
+      binaryFileOffset = -1;
+      try {if (inFile != null) inFile.close();}
+      catch (IOException e) {}
+    }
+  }
+
+
+  /**
+   * Splits a hunk header ("# type") in one pass.
+   * <br />The count is remembered, so getHunkCount() needn't parse it again.
+   *
+   * @param line a line that may be a header
+   * @return the type, or null if the line isn't a header
+   * @throws NumberFormatException if the count is too large
+   */
+  private String lexHunkHeader(String line) {
+    int len = line.length();
+    int i = 0;
+    long count = 0;
+    for (; i < len; i++) {
+      char c = line.charAt(i);
+      if (c < '0' || c > '9') break;
+      if (count <= Integer.MAX_VALUE) count = count*10 + (c-'0');
+    }
+    if (i == 0 || i+1 >= len || line.charAt(i) != ' ') return null;
+
+    int typeStart = i+1;
+    for (i=typeStart; i < len; i++) {
+      char c = line.charAt(i);
+      if ((c < 'A' || c > 'Z') && (c < 'a' || c > 'z')) return null;
+    }
+    if (count > Integer.MAX_VALUE) throw new NumberFormatException("For input string: \""+ line.substring(0, typeStart-1) +"\"");
+    // A hunk includes its own header, so zero would never advance
+    if (count == 0) return null;
+
+    lexedHeader = line;
+    lexedCount = (int)count;
+    return line.substring(typeStart);
+  }
+
+  /**
+   * Returns the line count from a hunk header.
+   */
+  private int getHunkCount(String header) {
+    if (header == lexedHeader) return lexedCount;
+    return Integer.parseInt(header.substring(0, header.indexOf(" ")));
+  }
+
+
+  /**
+   * Starts counting toward the parse limits, if any.
+   */
+  private void resetLimits() {
+    limitsActive = true;
+    limitNodeCount = 0;
+    limitDeadline = -1;
+    if (limits != null && limits.getMaxMillis() != UHSParseLimits.UNLIMITED)
+      limitDeadline = System.currentTimeMillis() + limits.getMaxMillis();
+  }
+
+  /**
+   * Stops counting toward the parse limits.
+   * <br />Public parsing methods called on their own won't throw LimitExceptions (or run out of time).
+   */
+  private void endLimits() {
+    limitsActive = false;
+    limitDeadline = -1;
+  }
+
+  private void checkFileSize(long size) {
+    if (!limitsActive || limits == null || limits.getMaxFileSize() == UHSParseLimits.UNLIMITED) return;
+    if (size > limits.getMaxFileSize())
+      throw new LimitException("File size limit exceeded: "+ size +" > "+ limits.getMaxFileSize() +" bytes");
+  }
+
+  private void countNode() {
+    limitNodeCount++;
+    if (!limitsActive || limits == null || limits.getMaxNodes() == UHSParseLimits.UNLIMITED) return;
+    if (limitNodeCount > limits.getMaxNodes())
+      throw new LimitException("Node limit exceeded: more than "+ limits.getMaxNodes() +" hunks and hints");
+  }
+
+  private void checkDepth(int depth) {
+    if (!limitsActive || limits == null || limits.getMaxDepth() == UHSParseLimits.UNLIMITED) return;
+    if (depth > limits.getMaxDepth())
+      throw new LimitException("Depth limit exceeded: subjects/nesthints nested more than "+ limits.getMaxDepth() +" deep");
+  }
+
+  private void checkTextLength(long totalLength) {
+    if (!limitsActive || limits == null || limits.getMaxTextLength() == UHSParseLimits.UNLIMITED) return;
+    if (totalLength > limits.getMaxTextLength())
+      throw new LimitException("Text limit exceeded: more than "+ limits.getMaxTextLength() +" chars");
+  }
+
+  private void checkBinarySize(int length) {
+    if (limits == null || limits.getMaxBinarySize() == UHSParseLimits.UNLIMITED) return;
+    if (length > limits.getMaxBinarySize())
+      throw new LimitException("Binary limit exceeded: a hunk claims "+ length +" > "+ limits.getMaxBinarySize() +" bytes");
+  }
+
+  private void checkTime() {
+    if (limitDeadline == -1) return;
+    if (System.currentTimeMillis() > limitDeadline)
+      throw new LimitException("Time limit exceeded: parsing took more than "+ limits.getMaxMillis() +" ms");
+  }
+
+
+  /**
+   * Creates a hint to be decrypted on first use, counting it toward the node limit.
+   *
+   * @param cipherLines encrypted lines (copied)
+   * @param nestKey the key for nesthint lines, or null for hint lines
+   * @param startIndex the index of the hunk's first line, for logging
+   */
+  private UHSNode newLazyHint(ArrayList cipherLines, int[] nestKey, int startIndex) {
+    countNode();
+    return new LazyHintNode(cipherLines, nestKey, errorHandler, logHeader+startIndex+1);
+  }
+
+
   private String getLoggedString(ArrayList uhsFileArray, int n) {
     logLine = n;
     return (String)uhsFileArray.get(n);
   }
+
+
+  /**
+   * Thrown when a parse limit is exceeded.
+   */
+  private static class LimitException extends RuntimeException {
+    public LimitException(String message) {
+      super(message);
+    }
+  }
+
+
+  /**
+   * Thrown when reading ahead failed, for parseFile() to report.
+   */
+  private static class ReadException extends RuntimeException {
+    public ReadException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+
+  /**
+   * Dispatches to the built-in hunk parsing methods.
+   */
+  private static class BuiltInHunkParser implements UHSHunkParser {
+    private int hunkType = -1;
+
+    public BuiltInHunkParser(int hunkType) {
+      this.hunkType = hunkType;
+    }
+
+    public int parseHunk(OpenUHSLib uhsLib, ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex) {
+      switch (hunkType) {
+        case HUNK_COMMENT: return uhsLib.parseCommentNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_CREDIT: return uhsLib.parseCreditNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_HINT: return uhsLib.parseHintNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_NESTHINT: return uhsLib.parseNestHintNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_SUBJECT: return uhsLib.parseSubjectNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_LINK: return uhsLib.parseLinkNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_TEXT: return uhsLib.parseTextNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_HYPERPNG: return uhsLib.parseHyperImgNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_GIFA: return uhsLib.parseHyperImgNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_SOUND: return uhsLib.parseSoundNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_BLANK: return uhsLib.parseBlankNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_VERSION: return uhsLib.parseVersionNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_INFO: return uhsLib.parseInfoNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        case HUNK_INCENTIVE: return uhsLib.parseIncentiveNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+        default: return uhsLib.parseUnknownNode(uhsFileArray, rawuhs, rawOffset, rootNode, currentNode, key, startIndex);
+      }
+    }
+  }
+
+
+  /**
+   * A subject or nesthint hunk that's being parsed.
+   */
+  private static class ParseFrame {
+    public int hunkType = -1;
+    public String type = null;
+    public boolean dispatched = false;  //Opened by buildNodes(), rather than called directly
+    public UHSNode parentNode = null;
+    public UHSNode node = null;
+    public int startIndex = 0;
+    public int index = 0;               //The line after the title
+    public int innerCount = 0;
+    public int j = 0;
+    public ArrayList cipherLines = null;
+    public boolean hasContent = false;
+  }
+
+
+  /**
+   * A hint from a 'hint' or 'nesthint' hunk, decrypted on first use.
+   * <br />Content is joined with "^break^", as it would be when parsed eagerly.
+   * <br />
+   * <br />Decoding may happen long after the parse, on another thread,
+   * so this keeps what it needs rather than referring to the parser.
+   */
+  private static class LazyHintNode extends UHSLazyNode {
+    private int[] nestKey = null;
+    private UHSErrorHandler errorHandler = null;
+    private int line = 0;
+
+    /**
+     * Creates a hint.
+     *
+     * @param cipherLines encrypted lines (copied)
+     * @param nestKey the key for nesthint lines, or null for hint lines
+     * @param eh an error handler to report unknown escapes to, or null
+     * @param line the line of the hunk this came from, for logging
+     */
+    public LazyHintNode(ArrayList cipherLines, int[] nestKey, UHSErrorHandler eh, int line) {
+      super("Hint");
+      this.nestKey = nestKey;
+      this.errorHandler = eh;
+      this.line = line;
+      setRawContent(cipherLines.toArray(new String[cipherLines.size()]), UHSNode.STRING);
+    }
+
+    protected Object decodeContent(Object inRawContent) {
+      String breakChar = "^break^";
+      String[] cipherLines = (String[])inRawContent;
+
+      StringBuffer tmpContent = new StringBuffer();
+      for (int i=0; i < cipherLines.length; i++) {
+        if (tmpContent.length() > 0) tmpContent.append(breakChar);
+
+        if (nestKey != null) tmpContent.append( decryptNestHintString(cipherLines[i], nestKey) );
+        else if (cipherLines[i].equals(" ")) tmpContent.append("\n \n");
+        else tmpContent.append( decryptHintString(cipherLines[i]) );
+      }
+
+      return decodeTextEscapes(tmpContent.toString(), errorHandler, this, line);
+    }
+  }
+
+
+  /**
+   * Lines from the middle of a file, indexed as if the whole file was present.
+   */
+  private static class LineWindow extends ArrayList {
+    private int base = 0;
+
+    public LineWindow(int base) {
+      this.base = base;
+    }
+
+    public Object get(int index) {
+      return super.get(index-base);
+    }
+
+    public int size() {
+      return base + super.size();
+    }
+  }
+
+
+  /**
+   * Lines of a file, which may still be arriving from another thread.
+   * <br />get() waits for a line that hasn't been read yet, and size()
+   * waits for the whole file, so parsing can start on the first lines.
+   * The binary section comes last, and is waited for the same way.
+   * If reading failed, asking for anything that never arrived throws
+   * the failure, or a ReadException.
+   * <br />Only get() and size() are meant for parsers.
+   */
+  private static class LineFeed extends ArrayList {
+    private int base = 0;
+    private boolean readingAhead = false;
+    private boolean finished = false;
+    private boolean cancelled = false;
+    private Throwable failure = null;
+    private byte[] rawuhs = null;
+    private long rawOffset = -1;
+    private long[] lineOffsets = null;
+
+    public synchronized Object get(int index) {
+      if (index < 0) throw new IndexOutOfBoundsException("Index: "+ index);
+      awaitLine(base+index);
+      return super.get(base+index);
+    }
+
+    public synchronized int size() {
+      awaitFinish();
+      return super.size() - base;
+    }
+
+    /**
+     * Returns true if a line exists, waiting to find out if necessary.
+     */
+    public synchronized boolean hasLine(int index) {
+      awaitLine(base+index);
+      return (index >= 0 && base+index < super.size());
+    }
+
+    /**
+     * Skips lines at the start, so later ones are indexed from 0.
+     */
+    public synchronized void dropLines(int count) {
+      base += count;
+    }
+
+    public synchronized void addLines(ArrayList lines) {
+      for (int i=0; i < lines.size(); i++) {
+        super.add(lines.get(i));
+      }
+      notifyAll();
+    }
+
+    public synchronized void finish(byte[] rawuhs, long rawOffset, long[] lineOffsets) {
+      this.rawuhs = rawuhs;
+      this.rawOffset = rawOffset;
+      this.lineOffsets = lineOffsets;
+      finished = true;
+      notifyAll();
+    }
+
+    public synchronized void fail(Throwable e) {
+      failure = e;
+      finished = true;
+      notifyAll();
+    }
+
+    /**
+     * Tells the reading thread to stop early.
+     */
+    public synchronized void cancel() {
+      cancelled = true;
+    }
+
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    public synchronized void setReadingAhead(boolean b) {
+      readingAhead = b;
+    }
+
+    public synchronized boolean isReadingAhead() {
+      return readingAhead;
+    }
+
+    public synchronized byte[] getRawBytes() {
+      awaitFinish();
+      return rawuhs;
+    }
+
+    public synchronized long getRawOffset() {
+      awaitFinish();
+      return rawOffset;
+    }
+
+    public synchronized long[] getLineOffsets() {
+      awaitFinish();
+      return lineOffsets;
+    }
+
+    private void awaitLine(int n) {
+      while (!finished && n >= super.size()) await();
+      if (failure != null && n >= super.size()) throwFailure();
+    }
+
+    private void awaitFinish() {
+      while (!finished) await();
+      if (failure != null) throwFailure();
+    }
+
+    private void await() {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ReadException(e);
+      }
+    }
+
+    private void throwFailure() {
+      if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+      throw new ReadException(failure);
+    }
+  }
 }
@@ -0,0 +1,54 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+import java.util.*;
+
+
+/**
+ * Parses one type of UHS 9x hunk.
+ * <br />OpenUHSLib looks parsers up by the type named in each hunk's
+ * header ("# type"). New hunk types can be supported, or built-in
+ * ones replaced, by registering a parser.
+ * <br />
+ * <br />A parser for a hunk that contains other hunks can call the
+ * library's buildNodes() for each of them.
+ *
+ * @see OpenUHSLib#setHunkParser(String, UHSHunkParser) OpenUHSLib.setHunkParser(String, UHSHunkParser)
+ */
+public interface UHSHunkParser {
+
+  /**
+   * Parses a hunk, adding nodes to currentNode.
+   *
+   * @param uhsLib the library doing the parsing
+   * @param uhsFileArray array of all available lines in the file
+   * @param rawuhs array of raw bytes at the end of the file
+   * @param rawOffset offset to the raw bytes from the beginning of the file
+   * @param rootNode an existing root node
+   * @param currentNode an existing node to add children to
+   * @param key this file's hint decryption key
+   * @param startIndex the line number of the hunk's header
+   * @return the number of lines consumed, including the header
+   */
+  public int parseHunk(OpenUHSLib uhsLib, ArrayList uhsFileArray, byte[] rawuhs, long rawOffset, UHSRootNode rootNode, UHSNode currentNode, int[] key, int startIndex);
+}
@@ -0,0 +1,103 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+
+/**
+ * A node whose content is decoded the first time it's needed.
+ * <br />Parsers hand over raw content (e.g., ciphertext), and
+ * subclasses turn it into the real thing in decodeContent().
+ * The result replaces the raw content, so decoding happens once.
+ * <br />
+ * <br />This is thread-safe. If several threads ask for content at
+ * once, one decodes while the others wait for the result.
+ */
+public abstract class UHSLazyNode extends UHSNode {
+  private volatile boolean pending = false;
+  private Object rawContent = null;
+
+
+  public UHSLazyNode(String inType) {
+    super(inType);
+  }
+
+
+  /**
+   * Sets raw content to be decoded on demand.
+   *
+   * @param inRawContent whatever decodeContent() expects
+   * @param inContentType the type of the decoded content: STRING, IMAGE, or AUDIO
+   */
+  public void setRawContent(Object inRawContent, int inContentType) {
+    synchronized (this) {
+      super.setContent(null, inContentType);
+      rawContent = inRawContent;
+      pending = true;
+    }
+  }
+
+
+  /**
+   * Returns this node's content, decoding it first if necessary.
+   */
+  public Object getContent() {
+    if (pending) {
+      synchronized (this) {
+        if (pending) {
+          super.setContent(decodeContent(rawContent), getContentType());
+          rawContent = null;
+          pending = false;
+        }
+      }
+    }
+    return super.getContent();
+  }
+
+  /**
+   * Sets this node's content, discarding any undecoded content.
+   */
+  public void setContent(Object inContent, int inContentType) {
+    synchronized (this) {
+      rawContent = null;
+      pending = false;
+      super.setContent(inContent, inContentType);
+    }
+  }
+
+
+  /**
+   * Returns true if content is available without decoding.
+   */
+  public boolean isDecoded() {
+    return !pending;
+  }
+
+
+  /**
+   * Decodes raw content.
+   * <br />This is called at most once per setRawContent(), while holding this node's lock.
+   *
+   * @param inRawContent the raw content
+   * @return the decoded content
+   */
+  protected abstract Object decodeContent(Object inRawContent);
+}
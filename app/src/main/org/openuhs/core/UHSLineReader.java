@@ -0,0 +1,225 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Reads a UHS file's text lines and binary tail in big chunks.
+ * <br />Lines are split the way RandomAccessFile.readLine() does it:
+ * bytes become chars one for one, and a line ends at "\n", "\r", or
+ * "\r\n".
+ * <br />
+ * <br />This isn't thread-safe. To read ahead, OpenUHSLib calls it from
+ * another thread and hands lines over as they're split.
+ */
+class UHSLineReader {
+  private static final int CHUNK_SIZE = 64*1024;
+
+  private static final byte[] END_CHUNK = new byte[0];
+
+  private RandomAccessFile inFile = null;
+  private FileChannel channel = null;
+  private long fileLength = 0;
+
+  private byte[] chunk = new byte[0];
+  private int chunkPos = 0;
+  private long chunkStart = 0;
+  private boolean ended = false;
+
+  private StringBuffer lineBuffer = new StringBuffer(80);
+
+
+  /**
+   * Opens a file.
+   *
+   * @param fileName the file to read
+   */
+  public UHSLineReader(String fileName) throws IOException {
+    this(new RandomAccessFile(fileName, "r"));
+  }
+
+
+  /**
+   * Reads an already open file, from its current position.
+   * <br />The file may be seeked and read directly between calls to
+   * seek() and anything else, and it's closed along with this reader.
+   *
+   * @param inFile the file to read
+   */
+  public UHSLineReader(RandomAccessFile inFile) throws IOException {
+    this.inFile = inFile;
+    channel = inFile.getChannel();
+    fileLength = inFile.length();
+    chunkStart = inFile.getFilePointer();
+  }
+
+
+  /**
+   * Returns the length of the file.
+   */
+  public long length() {
+    return fileLength;
+  }
+
+
+  /**
+   * Returns the offset of the next byte to be read.
+   */
+  public long getPosition() {
+    return chunkStart + chunkPos;
+  }
+
+
+  /**
+   * Moves to an offset, discarding anything already read ahead.
+   *
+   * @param pos the offset of the next byte to be read
+   */
+  public void seek(long pos) throws IOException {
+    channel.position(pos);
+    chunk = new byte[0];
+    chunkPos = 0;
+    chunkStart = pos;
+    ended = false;
+  }
+
+
+  /**
+   * Returns the next byte without consuming it.
+   *
+   * @return an unsigned byte, or -1 at the end of the file
+   */
+  public int peek() throws IOException {
+    if (chunkPos == chunk.length && !nextChunk()) return -1;
+    return chunk[chunkPos] & 0xff;
+  }
+
+
+  /**
+   * Returns the next byte.
+   *
+   * @return an unsigned byte, or -1 at the end of the file
+   */
+  public int read() throws IOException {
+    if (chunkPos == chunk.length && !nextChunk()) return -1;
+    return chunk[chunkPos++] & 0xff;
+  }
+
+
+  /**
+   * Reads a line of text.
+   *
+   * @return the line, without its line break, or null at the end of the file
+   */
+  public String readLine() throws IOException {
+    lineBuffer.setLength(0);
+    int c = -1;
+    while (true) {
+      if (chunkPos == chunk.length && !nextChunk()) {c = -1; break;}
+
+      // Scan the current chunk directly, rather than a byte per call
+      int start = chunkPos;
+      int i = start;
+      while (i < chunk.length && chunk[i] != '\n' && chunk[i] != '\r') i++;
+      for (int j=start; j < i; j++) lineBuffer.append((char)(chunk[j] & 0xff));
+      chunkPos = i;
+      if (i == chunk.length) continue;
+
+      c = chunk[chunkPos++];
+      if (c == '\r' && peek() == '\n') chunkPos++;
+      break;
+    }
+    if (c == -1 && lineBuffer.length() == 0) return null;
+    return lineBuffer.toString();
+  }
+
+
+  /**
+   * Reads everything left.
+   */
+  public byte[] readRemaining() throws IOException {
+    long remaining = fileLength - getPosition();
+    if (remaining > Integer.MAX_VALUE) throw new IOException("Too much left to read: "+ remaining +" bytes");
+    byte[] result = new byte[(int)Math.max(0, remaining)];
+    int n = 0;
+    while (n < result.length) {
+      if (chunkPos == chunk.length && !nextChunk()) break;
+      int count = Math.min(result.length-n, chunk.length-chunkPos);
+      System.arraycopy(chunk, chunkPos, result, n, count);
+      chunkPos += count;
+      n += count;
+    }
+    if (n < result.length) throw new EOFException();
+    return result;
+  }
+
+
+  /**
+   * Stops reading and closes the file.
+   */
+  public void close() {
+    try {inFile.close();}
+    catch (IOException e) {}
+  }
+
+
+  /**
+   * Moves on to the next chunk.
+   *
+   * @return true if there was one, false at the end of the file
+   */
+  private boolean nextChunk() throws IOException {
+    if (ended) return false;
+
+    byte[] tmpChunk = readChunk();
+    if (tmpChunk == END_CHUNK) {
+      ended = true;
+      return false;
+    }
+    chunkStart += chunk.length;
+    chunk = tmpChunk;
+    chunkPos = 0;
+    return true;
+  }
+
+
+  /**
+   * Reads a chunk from the file.
+   *
+   * @return a full chunk, a short one at the end, or END_CHUNK after that
+   */
+  private byte[] readChunk() throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) == -1) break;
+    }
+    if (buf.position() == 0) return END_CHUNK;
+
+    byte[] result = new byte[buf.position()];
+    System.arraycopy(buf.array(), 0, result, 0, result.length);
+    return result;
+  }
+}
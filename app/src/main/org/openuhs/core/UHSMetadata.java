@@ -0,0 +1,93 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+
+/**
+ * Facts about a hint file, gathered while parsing.
+ * <br />Values are as the file reports them, or null if the file
+ * doesn't say.
+ */
+public class UHSMetadata {
+  private String title = null;
+  private String formatVersion = null;
+  private String compilerVersion = null;
+  private String author = null;
+  private String publisher = null;
+  private String date = null;
+  private String time = null;
+  private String length = null;
+  private String copyright = null;
+
+
+  public UHSMetadata() {}
+
+
+  /** The master subject's title. */
+  public String getTitle() {return title;}
+
+  public void setTitle(String s) {title = s;}
+
+
+  /** The declared format (e.g., "88a", "91a", "95a", "96a"). */
+  public String getFormatVersion() {return formatVersion;}
+
+  public void setFormatVersion(String s) {formatVersion = s;}
+
+
+  /** The version hunk's description, usually naming the compiler. */
+  public String getCompilerVersion() {return compilerVersion;}
+
+  public void setCompilerVersion(String s) {compilerVersion = s;}
+
+
+  public String getAuthor() {return author;}
+
+  public void setAuthor(String s) {author = s;}
+
+
+  public String getPublisher() {return publisher;}
+
+  public void setPublisher(String s) {publisher = s;}
+
+
+  /** The info hunk's date (e.g., "DD-Mon-YY"). */
+  public String getDate() {return date;}
+
+  public void setDate(String s) {date = s;}
+
+
+  public String getTime() {return time;}
+
+  public void setTime(String s) {time = s;}
+
+
+  /** The info hunk's length, which is not necessarily the file size. */
+  public String getLength() {return length;}
+
+  public void setLength(String s) {length = s;}
+
+
+  public String getCopyright() {return copyright;}
+
+  public void setCopyright(String s) {copyright = s;}
+}
@@ -48,6 +48,7 @@ public class UHSNode {
   private Object content = null;
   private int contentType = STRING;
   private int id = -1;
+  private int ordinal = -1;
   private int linkIndex = -1;                                //Either Link or group, not both
   private boolean group = false;
   private ArrayList children = null;
@@ -100,6 +101,20 @@ public class UHSNode {
   }
 
 
+  /**
+   * Returns this node's position in its tree, or -1 if not indexed.
+   *
+   * @see org.openuhs.core.UHSRootNode#indexNodes() UHSRootNode.indexNodes()
+   */
+  public int getOrdinal() {
+    return ordinal;
+  }
+
+  public void setOrdinal(int input) {
+    ordinal = input;
+  }
+
+
   public boolean isLink() {
     if (linkIndex != -1) return true;
     else return false;
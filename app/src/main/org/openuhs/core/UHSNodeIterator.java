@@ -0,0 +1,282 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+import java.util.*;
+
+
+/**
+ * A non-recursive walk over a node and its descendants.
+ * <br />Nesting depth is limited by the heap rather than the thread's stack.
+ * <br />
+ * <br />After each call to next(), the depth and ancestry of the returned
+ * node are available. Depth is relative to the starting node, which is 0.
+ * <br />
+ * <br />A pre-order walk can be split, handing its unvisited later
+ * subtrees to a second iterator, so whole-tree work can be shared
+ * among threads. Link targets don't count as children.
+ *
+ * <pre> Typical usage:
+ * UHSNodeIterator it = new UHSNodeIterator(rootNode, UHSNodeIterator.PREORDER);
+ * while (it.hasNext()) {
+ *   UHSNode tmpNode = it.nextNode();
+ *   ...
+ * }</pre>
+ */
+public class UHSNodeIterator implements Iterator {
+  /** Visit each node before its children */
+  public static final int PREORDER = 0;
+
+  /** Visit each node after its children */
+  public static final int POSTORDER = 1;
+
+  private int order = PREORDER;
+
+  // Pre-order: pending nodes (top is next) with their depths
+  // Post-order: the chain of open ancestors with their next child index
+  private UHSNode[] stackNodes = new UHSNode[16];
+  private int[] stackInts = new int[16];
+  private int stackSize = 0;
+
+  // Pre-order: the most recently visited node at each depth
+  private UHSNode[] pathNodes = new UHSNode[16];
+
+  private UHSNode lastNode = null;
+  private int lastDepth = -1;
+  private boolean expandLast = false;
+
+
+  /**
+   * Creates an iterator.
+   *
+   * @param startNode the first node (pre-order) or last node (post-order) to visit
+   * @param inOrder PREORDER or POSTORDER
+   */
+  public UHSNodeIterator(UHSNode startNode, int inOrder) {
+    if (inOrder != PREORDER && inOrder != POSTORDER) inOrder = PREORDER;
+    order = inOrder;
+    if (startNode != null) push(startNode, 0);
+  }
+
+  private UHSNodeIterator(int inOrder) {
+    order = inOrder;
+  }
+
+
+  public boolean hasNext() {
+    if (order == PREORDER) {
+      expandPending();
+      return (stackSize > 0);
+    }
+    return (stackSize > 0);
+  }
+
+
+  /**
+   * Returns the next node.
+   *
+   * @return a UHSNode
+   * @throws NoSuchElementException if the walk is over
+   */
+  public Object next() {
+    return nextNode();
+  }
+
+  /**
+   * Returns the next node, without the need to cast.
+   *
+   * @return the next UHSNode
+   * @throws NoSuchElementException if the walk is over
+   */
+  public UHSNode nextNode() {
+    if (order == PREORDER) {
+      expandPending();
+      if (stackSize == 0) throw new NoSuchElementException();
+
+      stackSize--;
+      lastNode = stackNodes[stackSize];
+      lastDepth = stackInts[stackSize];
+      stackNodes[stackSize] = null;
+
+      if (lastDepth >= pathNodes.length) pathNodes = growNodes(pathNodes, lastDepth+1);
+      pathNodes[lastDepth] = lastNode;
+      expandLast = true;
+      return lastNode;
+    }
+    else {
+      if (stackSize == 0) throw new NoSuchElementException();
+
+      while (true) {
+        UHSNode tmpNode = stackNodes[stackSize-1];
+        int childIndex = stackInts[stackSize-1];
+        if (childIndex < tmpNode.getChildCount()) {
+          stackInts[stackSize-1]++;
+          push(tmpNode.getChild(childIndex), 0);
+        }
+        else {
+          stackSize--;
+          stackNodes[stackSize] = null;
+          lastNode = tmpNode;
+          lastDepth = stackSize;
+          return lastNode;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Unsupported.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+
+  /**
+   * Prevents a pre-order walk from descending into the last returned node.
+   * <br />Call this before the next hasNext() or next().
+   * <br />This does nothing in post-order, where children come first.
+   */
+  public void skipChildren() {
+    if (order == PREORDER) expandLast = false;
+  }
+
+
+  /**
+   * Returns the depth of the last returned node.
+   *
+   * @return 0 for the starting node, 1 for its children, etc., or -1 if next() hasn't been called
+   */
+  public int getDepth() {
+    return lastDepth;
+  }
+
+
+  /**
+   * Returns the parent of the last returned node.
+   *
+   * @return the parent, or null for the starting node
+   */
+  public UHSNode getParent() {
+    return getAncestor(1);
+  }
+
+
+  /**
+   * Returns an ancestor of the last returned node.
+   *
+   * @param generations 0 for the node itself, 1 for its parent, etc.
+   * @return the ancestor, or null if it would be above the starting node
+   */
+  public UHSNode getAncestor(int generations) {
+    int depth = lastDepth - generations;
+    if (lastNode == null || generations < 0 || depth < 0) return null;
+    if (order == PREORDER) return pathNodes[depth];
+    else return stackNodes[depth];
+  }
+
+
+  /**
+   * Returns the chain of nodes from the starting node down to the last returned node.
+   *
+   * @return an array of length getDepth()+1, or an empty array if next() hasn't been called
+   */
+  public UHSNode[] getPath() {
+    if (lastNode == null) return new UHSNode[0];
+    UHSNode[] result = new UHSNode[lastDepth+1];
+    if (order == PREORDER) System.arraycopy(pathNodes, 0, result, 0, lastDepth);
+    else System.arraycopy(stackNodes, 0, result, 0, lastDepth);
+    result[lastDepth] = lastNode;
+    return result;
+  }
+
+
+  /**
+   * Hands roughly half of the remaining pre-order walk to a new iterator.
+   * <br />The new iterator gets whole subtrees that this one would have
+   * visited last, and this one will no longer visit them. Depths and
+   * paths reported by both remain relative to the original starting node.
+   *
+   * @return a new iterator, or null if there's nothing to split off (or in post-order)
+   */
+  public UHSNodeIterator split() {
+    if (order != PREORDER) return null;
+    expandPending();
+    if (stackSize < 2) return null;
+
+    // The bottom of the stack holds the subtrees that come last
+    int splitCount = stackSize / 2;
+    UHSNodeIterator result = new UHSNodeIterator(PREORDER);
+
+    int maxDepth = 0;
+    for (int i=0; i < splitCount; i++) {
+      result.push(stackNodes[i], stackInts[i]);
+      if (stackInts[i] > maxDepth) maxDepth = stackInts[i];
+    }
+    // Pending nodes' ancestors are all on the current path
+    result.pathNodes = new UHSNode[Math.max(maxDepth+1, 16)];
+    System.arraycopy(pathNodes, 0, result.pathNodes, 0, Math.min(maxDepth, pathNodes.length));
+
+    System.arraycopy(stackNodes, splitCount, stackNodes, 0, stackSize-splitCount);
+    System.arraycopy(stackInts, splitCount, stackInts, 0, stackSize-splitCount);
+    for (int i=stackSize-splitCount; i < stackSize; i++) stackNodes[i] = null;
+    stackSize -= splitCount;
+
+    return result;
+  }
+
+
+  /**
+   * Pushes the last returned node's children, unless skipped.
+   * This is deferred so skipChildren() can cancel it.
+   */
+  private void expandPending() {
+    if (!expandLast) return;
+    expandLast = false;
+    for (int i=lastNode.getChildCount()-1; i >= 0; i--) {
+      push(lastNode.getChild(i), lastDepth+1);
+    }
+  }
+
+
+  private void push(UHSNode n, int value) {
+    if (stackSize == stackNodes.length) {
+      stackNodes = growNodes(stackNodes, stackSize+1);
+      int[] newInts = new int[stackNodes.length];
+      System.arraycopy(stackInts, 0, newInts, 0, stackSize);
+      stackInts = newInts;
+    }
+    stackNodes[stackSize] = n;
+    stackInts[stackSize] = value;
+    stackSize++;
+  }
+
+
+  private static UHSNode[] growNodes(UHSNode[] a, int minLength) {
+    UHSNode[] result = new UHSNode[Math.max(minLength, a.length*2)];
+    System.arraycopy(a, 0, result, 0, a.length);
+    return result;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+
+/**
+ * Resource limits for parsing untrusted UHS files.
+ * <br />A hostile or corrupt file can declare huge counts, nest hunks
+ * absurdly deep, or point binary hunks at gigabytes that aren't there.
+ * OpenUHSLib checks these limits as it goes and gives up cleanly,
+ * rather than exhausting memory or stalling the caller.
+ * <br />
+ * <br />Every limit defaults to UNLIMITED.
+ *
+ * @see OpenUHSLib#setParseLimits(UHSParseLimits)
+ */
+public class UHSParseLimits {
+  /** A value meaning no limit */
+  public static final int UNLIMITED = -1;
+
+  private long maxFileSize = UNLIMITED;
+  private int maxNodes = UNLIMITED;
+  private int maxDepth = UNLIMITED;
+  private long maxTextLength = UNLIMITED;
+  private int maxBinarySize = UNLIMITED;
+  private long maxMillis = UNLIMITED;
+
+
+  public UHSParseLimits() {
+  }
+
+
+  /**
+   * Returns limits suitable for files from unknown sources.
+   * <br />These are generous enough for any real hint file.
+   */
+  public static UHSParseLimits getUntrustedLimits() {
+    UHSParseLimits result = new UHSParseLimits();
+    result.setMaxFileSize(64*1024*1024);
+    result.setMaxNodes(250000);
+    result.setMaxDepth(256);
+    result.setMaxTextLength(32*1024*1024);
+    result.setMaxBinarySize(16*1024*1024);
+    result.setMaxMillis(10000);
+    return result;
+  }
+
+
+  /**
+   * Sets the largest file, in bytes, that will be read.
+   */
+  public void setMaxFileSize(long n) {maxFileSize = n;}
+
+  public long getMaxFileSize() {return maxFileSize;}
+
+
+  /**
+   * Sets the most hunks and hints a parse may create.
+   */
+  public void setMaxNodes(int n) {maxNodes = n;}
+
+  public int getMaxNodes() {return maxNodes;}
+
+
+  /**
+   * Sets how deep subjects and nesthints may be nested.
+   */
+  public void setMaxDepth(int n) {maxDepth = n;}
+
+  public int getMaxDepth() {return maxDepth;}
+
+
+  /**
+   * Sets the most chars of text that will be read.
+   */
+  public void setMaxTextLength(long n) {maxTextLength = n;}
+
+  public long getMaxTextLength() {return maxTextLength;}
+
+
+  /**
+   * Sets the largest binary hunk, in bytes, that will be read.
+   */
+  public void setMaxBinarySize(int n) {maxBinarySize = n;}
+
+  public int getMaxBinarySize() {return maxBinarySize;}
+
+
+  /**
+   * Sets how long, in milliseconds, a parse may take.
+   */
+  public void setMaxMillis(long n) {maxMillis = n;}
+
+  public long getMaxMillis() {return maxMillis;}
+}
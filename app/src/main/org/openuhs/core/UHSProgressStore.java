@@ -0,0 +1,278 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+import java.nio.*;
+
+
+/**
+ * Remembers how many hints have been revealed in each node of a UHS file.
+ * <br />Progress is kept in one small binary file per hint file, named
+ * after a fingerprint of the hint file's bytes, so renamed copies share
+ * progress and edited files start over.
+ * <br />
+ * <br />Nodes are identified by their ordinal.
+ *
+ * <pre> int magic ("UHSP")
+ * int format version
+ * long hint file length
+ * long hint file crc32
+ * int ordinal, int revealed amount
+ * int ordinal, int revealed amount
+ * ...</pre>
+ *
+ * Records are only ever appended. When a node is revealed further, a
+ * new record is written and the last one for an ordinal wins. Redundant
+ * records are compacted away the next time the file is opened.
+ */
+public class UHSProgressStore {
+  private static final int MAGIC = 0x55485350;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+  private static final int RECORD_SIZE = 4 + 4;
+
+  private UHSErrorHandler errorHandler = null;
+  private String progressPath = null;
+
+  private File progressFile = null;
+  private DataOutputStream progressOut = null;
+  private UHSRootNode rootNode = null;
+
+
+  /**
+   * Creates a progress store.
+   *
+   * @param path a dir to hold progress files (created if necessary)
+   */
+  public UHSProgressStore(String path) {
+    progressPath = path;
+    setErrorHandler(new DefaultUHSErrorHandler(System.err));
+  }
+
+
+  /**
+   * Sets the error handler to notify of exceptions.
+   * This is a convenience for logging/muting.
+   * The default handler prints to System.err.
+   *
+   * @param eh the error handler, or null, for quiet parsing
+   */
+  public void setErrorHandler(UHSErrorHandler eh) {
+    errorHandler = eh;
+  }
+
+
+  /**
+   * Returns a string identifying the contents of a file.
+   *
+   * @param fileName the file to identify
+   * @return hex length and crc32, separated by a dash
+   */
+  public static String getFingerprint(String fileName) throws IOException {
+    long[] values = getFingerprintValues(fileName);
+    return Long.toHexString(values[0]) +"-"+ Long.toHexString(values[1]);
+  }
+
+  static long[] getFingerprintValues(String fileName) throws IOException {
+    CRC32 crc = new CRC32();
+    long length = 0;
+    InputStream is = null;
+    try {
+      is = new FileInputStream(fileName);
+      byte[] buf = new byte[8192];
+      int count;
+      while ((count = is.read(buf)) != -1) {
+        crc.update(buf, 0, count);
+        length += count;
+      }
+    }
+    finally {
+      try {if (is != null) is.close();}
+      catch (IOException e) {}
+    }
+    return new long[] {length, crc.getValue()};
+  }
+
+
+  /**
+   * Starts tracking a tree and restores any saved progress into it.
+   * <br />Any previously opened tree is closed first.
+   *
+   * @param fileName the hint file the tree was parsed from
+   * @param rootNode the parsed tree
+   * @return true if progress can be recorded, false otherwise
+   */
+  public synchronized boolean open(String fileName, UHSRootNode inRootNode) {
+    close();
+    if (progressPath == null || inRootNode == null) return false;
+
+    try {
+      long[] fingerprint = getFingerprintValues(fileName);
+      File progressDir = new File(progressPath);
+      if (!progressDir.exists()) progressDir.mkdirs();
+      progressFile = new File(progressDir, Long.toHexString(fingerprint[0]) +"-"+ Long.toHexString(fingerprint[1]) +".prg");
+
+      rootNode = inRootNode;
+      if (rootNode.getNodeCount() == 0) rootNode.indexNodes();
+
+      int recordCount = 0;
+      int restoredCount = 0;
+      if (progressFile.exists()) {
+        int[] revealed = readProgress(progressFile, fingerprint);
+        if (revealed != null) {
+          recordCount = revealed[0];
+          for (int i=1; i < revealed.length; i+=2) {
+            int ordinal = revealed[i];
+            rootNode.getNode(ordinal).setRevealedAmount(revealed[i+1]);
+            restoredCount++;
+          }
+        }
+      }
+
+      if (recordCount == 0 || recordCount > restoredCount*2) {
+        // Missing, stale, torn, or bloated: rewrite from the tree as restored
+        writeProgress(progressFile, fingerprint);
+      }
+      progressOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(progressFile.getPath(), true)));
+      return true;
+    }
+    catch (IOException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not open progress for "+ fileName, 0, e);
+      close();
+      return false;
+    }
+  }
+
+
+  /**
+   * Saves a node's revealed amount.
+   * <br />Nodes outside the tracked tree are ignored.
+   *
+   * @param node a node whose revealed amount changed
+   */
+  public synchronized void record(UHSNode node) {
+    if (progressOut == null || node == null) return;
+    int ordinal = node.getOrdinal();
+    if (ordinal == -1 || rootNode.getNode(ordinal) != node) return;
+
+    try {
+      progressOut.writeInt(ordinal);
+      progressOut.writeInt(node.getRevealedAmount());
+      progressOut.flush();
+    }
+    catch (IOException e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, this, "Could not save progress", 0, e);
+      close();
+    }
+  }
+
+
+  /**
+   * Stops tracking the current tree.
+   */
+  public synchronized void close() {
+    if (progressOut != null) {
+      try {progressOut.close();}
+      catch (IOException e) {}
+    }
+    progressOut = null;
+    progressFile = null;
+    rootNode = null;
+  }
+
+
+  /**
+   * Reads a progress file.
+   *
+   * <br />A partial record at the end (e.g., from a failed write) is
+   * dropped, and the count is 0, so the file will be rewritten rather
+   * than appended to out of step.
+   *
+   * @return the record count followed by the latest ordinal/amount pairs, or null if the file doesn't match
+   */
+  private int[] readProgress(File f, long[] fingerprint) throws IOException {
+    long fileLength = f.length();
+    if (fileLength < HEADER_SIZE || fileLength > Integer.MAX_VALUE) return null;
+
+    byte[] bytes = new byte[(int)fileLength];
+    RandomAccessFile inFile = new RandomAccessFile(f, "r");
+    try {inFile.readFully(bytes);}
+    finally {inFile.close();}
+
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) return null;
+    if (buf.getLong() != fingerprint[0] || buf.getLong() != fingerprint[1]) return null;
+
+    int recordCount = buf.remaining() / RECORD_SIZE;
+    boolean torn = (buf.remaining() % RECORD_SIZE != 0);
+    if (torn && errorHandler != null) {
+      errorHandler.log(UHSErrorHandler.INFO, this, "Discarding a partial record in "+ f.getName(), 0, null);
+    }
+    int[] latest = new int[rootNode.getNodeCount()];
+    Arrays.fill(latest, -1);
+    for (int i=0; i < recordCount; i++) {
+      int ordinal = buf.getInt();
+      int amount = buf.getInt();
+      if (ordinal >= 0 && ordinal < latest.length) latest[ordinal] = amount;
+    }
+
+    int restorable = 0;
+    for (int i=0; i < latest.length; i++) {
+      if (latest[i] != -1) restorable++;
+    }
+    int[] result = new int[1+restorable*2];
+    result[0] = (torn ? 0 : recordCount);
+    for (int i=0, n=1; i < latest.length; i++) {
+      if (latest[i] == -1) continue;
+      result[n++] = i;
+      result[n++] = latest[i];
+    }
+    return result;
+  }
+
+
+  /**
+   * Writes a compact progress file, with a record for each partially revealed node.
+   */
+  private void writeProgress(File f, long[] fingerprint) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(fingerprint[0]);
+      out.writeLong(fingerprint[1]);
+      for (int i=0; i < rootNode.getNodeCount(); i++) {
+        int amount = rootNode.getNode(i).getRevealedAmount();
+        if (amount > 1) {
+          out.writeInt(i);
+          out.writeInt(amount);
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -27,9 +27,25 @@ import java.util.*;
 /**
  * A node to hold all others.
  * <br />Additionally a root node is responsible for tracking nodes that are link targets.
+ * <br />
+ * <br />Once a tree is built, indexNodes() numbers every node densely
+ * in document order, so per-node data can live in arrays indexed by
+ * ordinal instead of maps. It also records each node's parent, so
+ * ancestry questions don't require walking down from the root, and
+ * groups nodes by type, so all nodes of a kind can be found without a
+ * walk at all.
  */
 public class UHSRootNode extends UHSNode {
-  private HashMap linkMap = new HashMap();
+  private UHSNode[] linkTargets = new UHSNode[64];            //Indexed by id
+  private int linkCount = 0;
+  private UHSNode[] nodes = new UHSNode[0];                   //Indexed by ordinal
+  private int[] parentOrdinals = new int[0];
+  private int[] depths = new int[0];
+  private int[] lastDescendants = new int[0];
+  private int[] idOrdinals = new int[0];                      //Indexed by id
+  private HashMap typeOrdinals = new HashMap();               //Type strings to int[]
+  private int[][] contentTypeOrdinals = new int[][] {new int[0], new int[0], new int[0]};
+  private UHSMetadata metadata = new UHSMetadata();
 
 
   public UHSRootNode() {
@@ -37,13 +53,36 @@ public class UHSRootNode extends UHSNode {
   }
 
 
+  /**
+   * Returns facts about the hint file, gathered while parsing.
+   *
+   * @return the metadata (never null)
+   */
+  public UHSMetadata getMetadata() {
+    return metadata;
+  }
+
+  public void setMetadata(UHSMetadata m) {
+    if (m == null) metadata = new UHSMetadata();
+    else metadata = m;
+  }
+
+
   /**
    * Makes a node available to target by link nodes.
    *
    * @param newLink the node to add
    */
   public void addLink(UHSNode newLink) {
-    linkMap.put(newLink.getId()+"", newLink);
+    int id = newLink.getId();
+    if (id < 0) return;
+    if (id >= linkTargets.length) {
+      UHSNode[] newTargets = new UHSNode[Math.max(id+1, linkTargets.length*2)];
+      System.arraycopy(linkTargets, 0, newTargets, 0, linkTargets.length);
+      linkTargets = newTargets;
+    }
+    if (linkTargets[id] == null) linkCount++;
+    linkTargets[id] = newLink;
   }
 
   /**
@@ -52,8 +91,9 @@ public class UHSRootNode extends UHSNode {
    * @param id ID of the node to remove
    */
   public void removeLinkById(int id) {
-    if (!linkMap.containsKey(id+"")) return;
-    linkMap.remove(id+"");
+    if (id < 0 || id >= linkTargets.length || linkTargets[id] == null) return;
+    linkTargets[id] = null;
+    linkCount--;
   }
 
   /**
@@ -62,15 +102,15 @@ public class UHSRootNode extends UHSNode {
    * @param doomedLink the node to remove
    */
   public void removeLink(UHSNode doomedLink) {
-    if (!linkMap.containsKey(doomedLink.getId()+"")) return;
-    linkMap.remove(doomedLink.getId()+"");
+    removeLinkById(doomedLink.getId());
   }
 
   /**
    * Makes all nodes unavailable to target by link nodes.
    */
   public void removeAllLinks() {
-    linkMap.clear();
+    Arrays.fill(linkTargets, null);
+    linkCount = 0;
   }
 
   /**
@@ -80,10 +120,9 @@ public class UHSRootNode extends UHSNode {
    * @return the node, or null if not found
    */
   public UHSNode getLink(int id) {
-    Object o = linkMap.get(id+"");
-    if (o == null) return null;
+    UHSNode newNode = getLinkTarget(id);
+    if (newNode == null) return null;
 
-    UHSNode newNode = (UHSNode)o;
     if (newNode.isGroup()) return newNode;
     else {
       UHSNode tmpNode = new UHSNode("Temp");
@@ -93,10 +132,254 @@ public class UHSRootNode extends UHSNode {
     }
   }
 
+  /**
+   * Gets a link's target, as is.
+   * <br />Unlike getLink(int), non-group nodes are not wrapped.
+   *
+   * @param id ID of the node to get
+   * @return the node, or null if not found
+   */
+  public UHSNode getLinkTarget(int id) {
+    if (id < 0 || id >= linkTargets.length) return null;
+    return linkTargets[id];
+  }
+
   public int getLinkCount() {
-    return linkMap.size();
+    return linkCount;
+  }
+
+
+  /**
+   * Numbers this node and all its descendants in document order.
+   * <br />The root is 0. Parsers call this once the tree is built.
+   * Call it again after adding or removing nodes.
+   */
+  public void indexNodes() {
+    ArrayList nodeList = new ArrayList();
+    int[] tmpParents = new int[64];
+    int[] tmpDepths = new int[64];
+    HashMap tmpTypes = new HashMap();
+    int[][] tmpContentTypes = new int[][] {new int[16], new int[16], new int[16]};
+    int[] contentTypeCounts = new int[3];
+
+    UHSNodeIterator it = new UHSNodeIterator(this, UHSNodeIterator.PREORDER);
+    while (it.hasNext()) {
+      UHSNode tmpNode = it.nextNode();
+      int ordinal = nodeList.size();
+      if (ordinal == tmpParents.length) {
+        tmpParents = growInts(tmpParents, ordinal*2);
+        tmpDepths = growInts(tmpDepths, ordinal*2);
+      }
+      UHSNode parentNode = it.getParent();
+      tmpParents[ordinal] = (parentNode!=null?parentNode.getOrdinal():-1);
+      tmpDepths[ordinal] = it.getDepth();
+
+      int[] typeList = (int[])tmpTypes.get(tmpNode.getType());
+      if (typeList == null) {
+        typeList = new int[8];
+        tmpTypes.put(tmpNode.getType(), typeList);
+      }
+      else if (typeList[0]+1 == typeList.length) {
+        typeList = growInts(typeList, typeList.length*2);
+        tmpTypes.put(tmpNode.getType(), typeList);
+      }
+      typeList[0]++;
+      typeList[typeList[0]] = ordinal;
+
+      int contentType = tmpNode.getContentType();
+      if (contentType >= 0 && contentType < tmpContentTypes.length) {
+        if (contentTypeCounts[contentType] == tmpContentTypes[contentType].length) {
+          tmpContentTypes[contentType] = growInts(tmpContentTypes[contentType], contentTypeCounts[contentType]*2);
+        }
+        tmpContentTypes[contentType][contentTypeCounts[contentType]++] = ordinal;
+      }
+
+      tmpNode.setOrdinal(ordinal);
+      nodeList.add(tmpNode);
+    }
+    int count = nodeList.size();
+    nodes = (UHSNode[])nodeList.toArray(new UHSNode[count]);
+    parentOrdinals = growInts(tmpParents, count);
+    depths = growInts(tmpDepths, count);
+
+    // Type lists were built with their length in the first slot
+    typeOrdinals.clear();
+    Iterator typeIt = tmpTypes.entrySet().iterator();
+    while (typeIt.hasNext()) {
+      Map.Entry entry = (Map.Entry)typeIt.next();
+      int[] typeList = (int[])entry.getValue();
+      int[] ordinals = new int[typeList[0]];
+      System.arraycopy(typeList, 1, ordinals, 0, ordinals.length);
+      typeOrdinals.put(entry.getKey(), ordinals);
+    }
+    for (int i=0; i < tmpContentTypes.length; i++) {
+      contentTypeOrdinals[i] = growInts(tmpContentTypes[i], contentTypeCounts[i]);
+    }
+
+    int maxId = -1;
+    for (int i=0; i < count; i++) {
+      if (nodes[i].getId() > maxId) maxId = nodes[i].getId();
+    }
+    idOrdinals = new int[maxId+1];
+    Arrays.fill(idOrdinals, -1);
+    for (int i=0; i < count; i++) {
+      int id = nodes[i].getId();
+      if (id >= 0 && idOrdinals[id] == -1) idOrdinals[id] = i;
+    }
+
+    // Descendants always follow their ancestors
+    lastDescendants = new int[count];
+    for (int i=count-1; i >= 0; i--) {
+      if (lastDescendants[i] < i) lastDescendants[i] = i;
+      int parent = parentOrdinals[i];
+      if (parent != -1 && lastDescendants[parent] < lastDescendants[i]) lastDescendants[parent] = lastDescendants[i];
+    }
+  }
+
+  /**
+   * Returns the number of nodes numbered by the last indexNodes().
+   */
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /**
+   * Gets a node by its ordinal.
+   *
+   * @param ordinal a number from 0 to getNodeCount()-1
+   * @return the node, or null if out of range
+   */
+  public UHSNode getNode(int ordinal) {
+    if (ordinal < 0 || ordinal >= nodes.length) return null;
+    return nodes[ordinal];
+  }
+
+  /**
+   * Gets the ordinal of a node with an id.
+   * <br />Any indexed node with an id counts, not just link targets.
+   * If several share an id, the first in document order is found.
+   *
+   * @param id ID of a node
+   * @return the ordinal, or -1 if not found
+   */
+  public int getOrdinalById(int id) {
+    if (id < 0 || id >= idOrdinals.length) return -1;
+    return idOrdinals[id];
   }
 
+
+  /**
+   * Counts the indexed nodes of a type.
+   *
+   * @param type a node type (e.g., "Hint", "Version")
+   * @return the number of nodes
+   */
+  public int getTypeCount(String type) {
+    int[] ordinals = (int[])typeOrdinals.get(type);
+    return (ordinals!=null?ordinals.length:0);
+  }
+
+  /**
+   * Gets the ordinals of all indexed nodes of a type.
+   * <br />The array is shared and should not be modified.
+   *
+   * @param type a node type (e.g., "Hint", "Version")
+   * @return ordinals in document order (possibly empty)
+   */
+  public int[] getOrdinalsByType(String type) {
+    int[] ordinals = (int[])typeOrdinals.get(type);
+    return (ordinals!=null?ordinals:new int[0]);
+  }
+
+  /**
+   * Gets the ordinals of all indexed nodes with a kind of content.
+   * <br />The array is shared and should not be modified.
+   *
+   * @param contentType one of STRING, IMAGE, or AUDIO
+   * @return ordinals in document order (possibly empty)
+   */
+  public int[] getOrdinalsByContentType(int contentType) {
+    if (contentType < 0 || contentType >= contentTypeOrdinals.length) return new int[0];
+    return contentTypeOrdinals[contentType];
+  }
+
+
+  /**
+   * Gets the parent of an indexed node.
+   *
+   * @param n a node in this tree
+   * @return the parent, or null for the root or nodes that aren't indexed
+   */
+  public UHSNode getParent(UHSNode n) {
+    int ordinal = getIndexedOrdinal(n);
+    if (ordinal == -1 || parentOrdinals[ordinal] == -1) return null;
+    return nodes[parentOrdinals[ordinal]];
+  }
+
+  /**
+   * Gets the nesting level of an indexed node.
+   *
+   * @param n a node in this tree
+   * @return 0 for the root, 1 for its children, etc., or -1 if not indexed
+   */
+  public int getDepth(UHSNode n) {
+    int ordinal = getIndexedOrdinal(n);
+    if (ordinal == -1) return -1;
+    return depths[ordinal];
+  }
+
+  /**
+   * Gets the chain of nodes from the root down to an indexed node.
+   * <br />The array is built on each call, so callers should only ask
+   * for nodes they actually intend to show.
+   *
+   * @param n a node in this tree
+   * @return an array starting with the root and ending with n, or null if not indexed
+   */
+  public UHSNode[] getPath(UHSNode n) {
+    int ordinal = getIndexedOrdinal(n);
+    if (ordinal == -1) return null;
+
+    UHSNode[] result = new UHSNode[depths[ordinal]+1];
+    for (int i=result.length-1; i >= 0; i--) {
+      result[i] = nodes[ordinal];
+      ordinal = parentOrdinals[ordinal];
+    }
+    return result;
+  }
+
+  /**
+   * Determines whether one indexed node contains another.
+   *
+   * @param ancestor a node in this tree
+   * @param n another node in this tree
+   * @return true if n is a descendant of ancestor (or is ancestor), false otherwise
+   */
+  public boolean isAncestor(UHSNode ancestor, UHSNode n) {
+    int a = getIndexedOrdinal(ancestor);
+    int b = getIndexedOrdinal(n);
+    if (a == -1 || b == -1) return false;
+    return (a <= b && b <= lastDescendants[a]);
+  }
+
+
+  /**
+   * Returns a node's ordinal, if it belongs to this tree's index.
+   */
+  private int getIndexedOrdinal(UHSNode n) {
+    if (n == null) return -1;
+    int ordinal = n.getOrdinal();
+    if (ordinal < 0 || ordinal >= nodes.length || nodes[ordinal] != n) return -1;
+    return ordinal;
+  }
+
+  private static int[] growInts(int[] a, int newLength) {
+    int[] result = new int[newLength];
+    System.arraycopy(a, 0, result, 0, Math.min(a.length, newLength));
+    return result;
+  }
+
+
   public void setChildren(ArrayList inChildren) {
     super.setChildren(inChildren);
     if (this.getChildCount() > 0) this.setRevealedAmount(this.getChildCount());
@@ -0,0 +1,292 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.core;
+
+import java.util.*;
+import java.io.*;
+
+
+/**
+ * A table of contents for a UHS 9x file.
+ * <br />Every hunk parsed by buildNodes() gets an entry: its id (the
+ * line index used by links), the byte offset of its header line,
+ * the number of lines it spans, its type, and the id of the hunk
+ * that contains it.
+ * <br />
+ * <br />The table is kept in a sidecar file beside the hint file,
+ * named after it with ".toc" appended, and is stamped with the hint
+ * file's fingerprint so edits are noticed. Loading only compares the
+ * length and modification time; the crc is checked only if the time
+ * differs (e.g., the files were copied).
+ *
+ * <pre> int magic ("UHST")
+ * int format version
+ * long hint file length
+ * long hint file modification time
+ * long hint file crc32
+ * long offset to the binary section, or -1
+ * UTF master subject title (the decryption key's source)
+ * int hunk count
+ * int id, long offset, int span, int parent id, UTF type
+ * ...</pre>
+ *
+ * @see OpenUHSLib#parseHunk(String, UHSTocIndex, int) OpenUHSLib.parseHunk(String, UHSTocIndex, int)
+ */
+public class UHSTocIndex {
+  public static final String SUFFIX = ".toc";
+
+  private static final int MAGIC = 0x55485354;
+  private static final int FORMAT_VERSION = 2;
+
+  private String name = "";
+  private long rawOffset = -1;
+
+  private int hunkCount = 0;
+  private int[] ids = new int[64];
+  private long[] offsets = new long[64];
+  private int[] spans = new int[64];
+  private int[] parentIds = new int[64];
+  private String[] types = new String[64];
+
+
+  public UHSTocIndex() {
+  }
+
+
+  /**
+   * Returns the master subject's title, from which the decryption key is generated.
+   */
+  public String getName() {return name;}
+
+  /**
+   * Returns the offset to the binary section from the beginning of the file.
+   *
+   * @return the offset, or -1 if there is none
+   */
+  public long getRawOffset() {return rawOffset;}
+
+  public int getHunkCount() {return hunkCount;}
+
+  public int getId(int n) {return ids[n];}
+
+  /**
+   * Returns the byte offset of a hunk's header line.
+   */
+  public long getOffset(int n) {return offsets[n];}
+
+  /**
+   * Returns the number of lines a hunk spans, including its header.
+   */
+  public int getSpan(int n) {return spans[n];}
+
+  /**
+   * Returns the id of the hunk containing a hunk.
+   *
+   * @return the parent's id, or -1 for top-level hunks
+   */
+  public int getParentId(int n) {return parentIds[n];}
+
+  /**
+   * Returns a hunk's type, as named in its header (e.g., "subject").
+   */
+  public String getType(int n) {return types[n];}
+
+
+  /**
+   * Finds the entry for a hunk.
+   *
+   * @param id the hunk's id
+   * @return the entry's index, or -1
+   */
+  public int indexOfId(int id) {
+    int lo = 0;
+    int hi = hunkCount-1;
+    while (lo <= hi) {
+      int mid = (lo+hi) >>> 1;
+      if (ids[mid] < id) lo = mid+1;
+      else if (ids[mid] > id) hi = mid-1;
+      else return mid;
+    }
+    return -1;
+  }
+
+
+  /**
+   * Records a hunk while parsing.
+   * Offsets are filled in later by finish().
+   */
+  void addHunk(int id, int span, String type, int parentId) {
+    if (hunkCount == ids.length) {
+      int newLength = ids.length*2;
+      int[] newIds = new int[newLength];
+      long[] newOffsets = new long[newLength];
+      int[] newSpans = new int[newLength];
+      int[] newParentIds = new int[newLength];
+      String[] newTypes = new String[newLength];
+      System.arraycopy(ids, 0, newIds, 0, hunkCount);
+      System.arraycopy(spans, 0, newSpans, 0, hunkCount);
+      System.arraycopy(parentIds, 0, newParentIds, 0, hunkCount);
+      System.arraycopy(types, 0, newTypes, 0, hunkCount);
+      ids = newIds; offsets = newOffsets; spans = newSpans; parentIds = newParentIds; types = newTypes;
+    }
+    ids[hunkCount] = id;
+    spans[hunkCount] = span;
+    parentIds[hunkCount] = parentId;
+    types[hunkCount] = type;
+    hunkCount++;
+  }
+
+
+  /**
+   * Sorts recorded hunks by id and resolves their byte offsets.
+   *
+   * @param inName the master subject's title
+   * @param inRawOffset offset to the binary section, or -1
+   * @param lineOffsets byte offsets of the file's lines, after the four-line header
+   * @param lineBase the index in lineOffsets of the line whose id is 0
+   */
+  void finish(String inName, long inRawOffset, long[] lineOffsets, int lineBase) {
+    name = inName;
+    rawOffset = inRawOffset;
+
+    // Hunks are recorded as they're finished, so children come before parents
+    Integer[] order = new Integer[hunkCount];
+    for (int i=0; i < hunkCount; i++) order[i] = new Integer(i);
+    Arrays.sort(order, new Comparator() {
+      public int compare(Object a, Object b) {
+        int idA = ids[((Integer)a).intValue()];
+        int idB = ids[((Integer)b).intValue()];
+        return (idA < idB ? -1 : (idA == idB ? 0 : 1));
+      }
+    });
+
+    int[] newIds = new int[hunkCount];
+    long[] newOffsets = new long[hunkCount];
+    int[] newSpans = new int[hunkCount];
+    int[] newParentIds = new int[hunkCount];
+    String[] newTypes = new String[hunkCount];
+    for (int i=0; i < hunkCount; i++) {
+      int n = order[i].intValue();
+      newIds[i] = ids[n];
+      newOffsets[i] = lineOffsets[lineBase+ids[n]];
+      newSpans[i] = spans[n];
+      newParentIds[i] = parentIds[n];
+      newTypes[i] = types[n];
+    }
+    ids = newIds; offsets = newOffsets; spans = newSpans; parentIds = newParentIds; types = newTypes;
+  }
+
+
+  /**
+   * Returns the sidecar file for a hint file.
+   */
+  public static File getTocFile(String fileName) {
+    return new File(fileName + SUFFIX);
+  }
+
+
+  /**
+   * Loads a hint file's sidecar index.
+   *
+   * @param fileName the hint file (not the sidecar)
+   * @return the index, or null if it's missing or no longer matches the hint file
+   */
+  public static UHSTocIndex load(String fileName) throws IOException {
+    File tocFile = getTocFile(fileName);
+    if (!tocFile.exists()) return null;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tocFile)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+
+      File hintFile = new File(fileName);
+      long length = in.readLong();
+      long modified = in.readLong();
+      long crc = in.readLong();
+      if (length != hintFile.length()) return null;
+      if (modified != hintFile.lastModified()) {
+        long[] fingerprint = UHSProgressStore.getFingerprintValues(fileName);
+        if (length != fingerprint[0] || crc != fingerprint[1]) return null;
+      }
+
+      UHSTocIndex result = new UHSTocIndex();
+      result.rawOffset = in.readLong();
+      result.name = in.readUTF();
+      int count = in.readInt();
+      if (count < 0) return null;
+
+      result.hunkCount = count;
+      result.ids = new int[count];
+      result.offsets = new long[count];
+      result.spans = new int[count];
+      result.parentIds = new int[count];
+      result.types = new String[count];
+      for (int i=0; i < count; i++) {
+        result.ids[i] = in.readInt();
+        result.offsets[i] = in.readLong();
+        result.spans[i] = in.readInt();
+        result.parentIds[i] = in.readInt();
+        result.types[i] = in.readUTF().intern();
+      }
+      return result;
+    }
+    catch (EOFException e) {
+      return null;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Writes this index as a hint file's sidecar.
+   *
+   * @param fileName the hint file (not the sidecar)
+   */
+  public void write(String fileName) throws IOException {
+    long modified = new File(fileName).lastModified();
+    long[] fingerprint = UHSProgressStore.getFingerprintValues(fileName);
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getTocFile(fileName))));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(fingerprint[0]);
+      out.writeLong(modified);
+      out.writeLong(fingerprint[1]);
+      out.writeLong(rawOffset);
+      out.writeUTF(name);
+      out.writeInt(hunkCount);
+      for (int i=0; i < hunkCount; i++) {
+        out.writeInt(ids[i]);
+        out.writeLong(offsets[i]);
+        out.writeInt(spans[i]);
+        out.writeInt(parentIds[i]);
+        out.writeUTF(types[i]);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.reader;
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+import org.openuhs.core.*;
+
+
+/**
+ * A hotspot node's image, overlays, and zones, drawn by one component.
+ * <br />Overlays are drawn over the main image in child order, and zone
+ * edges are drawn over everything. Where zones overlap, the last one
+ * gets the click.
+ * <br />
+ * <br />Zones under the mouse are found through a grid of cells, each
+ * listing the zones that overlap it. Toggling an overlay only repaints
+ * the area it covers.
+ * <br />
+ * <br />Ctrl+wheel zooms around the mouse, and dragging pans. The map
+ * is drawn as wide as it likes, but the canvas only needs to be as wide
+ * as its container; anything beyond can be dragged into view.
+ * Huge images from a UHSImageService are drawn from tiles, decoded
+ * to suit the zoom.
+ */
+public class HotSpotCanvas extends JComponent {
+  private static final int CELL_SIZE = 64;
+  private static final double[] ZOOM_LEVELS = new double[] {0.125, 0.25, 0.5, 0.75, 1.0, 1.5, 2.0, 3.0, 4.0};
+  private static final int DEFAULT_ZOOM_INDEX = 4;
+  private static final Stroke EDGE_STROKE = new BasicStroke(1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 1, new float[] {1f,2f}, 0);
+
+  private HotSpotCanvas pronoun = this;
+  private UHSReaderNavCtrl navCtrl = null;
+
+  private Icon mainIcon = null;
+  private Rectangle mainBounds = null;
+  private int zoomIndex = DEFAULT_ZOOM_INDEX;
+  private double zoom = ZOOM_LEVELS[DEFAULT_ZOOM_INDEX];
+  private int panX = 0;
+
+  private int overlayCount = 0;
+  private Icon[] overlayIcons = null;
+  private Rectangle[] overlayBounds = null;
+  private boolean[] overlayVisible = null;
+
+  private int zoneCount = 0;
+  private Rectangle[] zoneBounds = null;
+  private int[] zoneOverlays = null;  // Overlay index, or -1
+  private int[] zoneLinks = null;     // Link target, or -1
+
+  private int gridCols = 0;
+  private int gridRows = 0;
+  private int[][] gridCells = null;   // Zone indices, ascending, by row*gridCols+col
+
+
+  /**
+   * @param n the hotspot node to draw
+   * @param icons icons for image children, by child index (nulls elsewhere)
+   * @param c callback used to follow link zones
+   */
+  public HotSpotCanvas(UHSHotSpotNode n, Icon[] icons, UHSReaderNavCtrl c) {
+    navCtrl = c;
+
+    int childCount = n.getChildCount();
+    overlayIcons = new Icon[childCount];
+    overlayBounds = new Rectangle[childCount];
+    overlayVisible = new boolean[childCount];
+    zoneBounds = new Rectangle[childCount];
+    zoneOverlays = new int[childCount];
+    zoneLinks = new int[childCount];
+
+    for (int i=0; i < childCount; i++) {
+      UHSNode tmpNode = n.getChild(i);
+      int[] coords = n.getCoords(i);
+      int childContentType = tmpNode.getContentType();
+
+      if (childContentType == UHSNode.STRING) {
+        addZone(coords, -1, (tmpNode.isLink() ? tmpNode.getLinkTarget() : -1));
+      }
+      else if (childContentType == UHSNode.IMAGE) {
+        Icon tmpIcon = icons[i];
+        Rectangle tmpBounds = new Rectangle(coords[4], coords[5], tmpIcon.getIconWidth(), tmpIcon.getIconHeight());
+        if (i == 0) {
+          mainIcon = tmpIcon;
+          mainBounds = tmpBounds;
+        } else {
+          overlayIcons[overlayCount] = tmpIcon;
+          overlayBounds[overlayCount] = tmpBounds;
+          addZone(coords, overlayCount, -1);
+          overlayCount++;
+        }
+      }
+    }
+    buildGrid();
+
+    MouseInputAdapter zoneListener = new MouseInputAdapter() {
+      Cursor zoneCursor = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR);
+      Cursor normCursor = Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR);
+      Point dragPoint = null;
+
+      public void mouseMoved(MouseEvent e) {
+        Cursor newCursor = (getZoneAt(e.getX(), e.getY()) != -1 ? zoneCursor : normCursor);
+        if (pronoun.getCursor() != newCursor) pronoun.setCursor(newCursor);
+      }
+      public void mouseExited(MouseEvent e) {
+        pronoun.setCursor(normCursor);
+      }
+      public void mouseClicked(MouseEvent e) {
+        int zone = getZoneAt(e.getX(), e.getY());
+        if (zone == -1) return;
+        if (zoneOverlays[zone] != -1)
+          setOverlayVisible(zoneOverlays[zone], !isOverlayVisible(zoneOverlays[zone]));
+        else if (zoneLinks[zone] != -1)
+          navCtrl.setReaderNode(zoneLinks[zone]);
+      }
+      public void mousePressed(MouseEvent e) {
+        dragPoint = e.getPoint();
+        SwingUtilities.convertPointToScreen(dragPoint, pronoun);
+      }
+      public void mouseDragged(MouseEvent e) {
+        if (dragPoint == null) return;
+        Point p = e.getPoint();
+        SwingUtilities.convertPointToScreen(p, pronoun);
+        pan(dragPoint.x - p.x, dragPoint.y - p.y);
+        dragPoint = p;
+      }
+      public void mouseReleased(MouseEvent e) {
+        dragPoint = null;
+      }
+      public void mouseWheelMoved(MouseWheelEvent e) {
+        if (e.isControlDown()) {
+          int newIndex = Math.max(0, Math.min(ZOOM_LEVELS.length-1, zoomIndex - e.getWheelRotation()));
+          if (newIndex != zoomIndex) setZoomIndex(newIndex, e.getX(), e.getY());
+        }
+        else if (pronoun.getParent() != null) {
+          // Let the enclosing scroll pane have it
+          Container parent = pronoun.getParent();
+          parent.dispatchEvent(SwingUtilities.convertMouseEvent(pronoun, e, parent));
+        }
+      }
+    };
+    pronoun.addMouseListener(zoneListener);
+    pronoun.addMouseMotionListener(zoneListener);
+    pronoun.addMouseWheelListener(zoneListener);
+  }
+
+
+  private void addZone(int[] coords, int overlay, int link) {
+    zoneBounds[zoneCount] = new Rectangle(coords[0], coords[1], coords[2], coords[3]);
+    zoneOverlays[zoneCount] = overlay;
+    zoneLinks[zoneCount] = link;
+    zoneCount++;
+  }
+
+
+  /**
+   * Lists each zone in every cell it overlaps.
+   */
+  private void buildGrid() {
+    int maxX = 0, maxY = 0;
+    for (int z=0; z < zoneCount; z++) {
+      maxX = Math.max(maxX, zoneBounds[z].x + zoneBounds[z].width);
+      maxY = Math.max(maxY, zoneBounds[z].y + zoneBounds[z].height);
+    }
+    gridCols = Math.max(1, (maxX + CELL_SIZE-1) / CELL_SIZE);
+    gridRows = Math.max(1, (maxY + CELL_SIZE-1) / CELL_SIZE);
+
+    // Count first, then fill exactly sized arrays
+    int[] cellSizes = new int[gridCols*gridRows];
+    for (int pass=0; pass < 2; pass++) {
+      if (pass == 1) {
+        gridCells = new int[cellSizes.length][];
+        for (int i=0; i < cellSizes.length; i++) {
+          gridCells[i] = new int[cellSizes[i]];
+          cellSizes[i] = 0;
+        }
+      }
+      for (int z=0; z < zoneCount; z++) {
+        Rectangle r = zoneBounds[z];
+        if (r.width <= 0 || r.height <= 0) continue;
+        int colMax = getCell(r.x + r.width-1, gridCols);
+        int rowMax = getCell(r.y + r.height-1, gridRows);
+        for (int row=getCell(r.y, gridRows); row <= rowMax; row++) {
+          for (int col=getCell(r.x, gridCols); col <= colMax; col++) {
+            int cell = row*gridCols + col;
+            if (pass == 1) gridCells[cell][cellSizes[cell]] = z;
+            cellSizes[cell]++;
+          }
+        }
+      }
+    }
+  }
+
+  private static int getCell(int n, int cellCount) {
+    return Math.max(0, Math.min(cellCount-1, n / CELL_SIZE));
+  }
+
+
+  /**
+   * Finds the topmost zone at a point.
+   *
+   * @param x a point on this component
+   * @param y a point on this component
+   * @return a zone index, or -1
+   */
+  public int getZoneAt(int x, int y) {
+    // To image coordinates
+    x = (int)Math.floor((x + panX) / zoom);
+    y = (int)Math.floor(y / zoom);
+    if (x < 0 || y < 0 || x >= gridCols*CELL_SIZE || y >= gridRows*CELL_SIZE) return -1;
+
+    int[] cellZones = gridCells[(y/CELL_SIZE)*gridCols + x/CELL_SIZE];
+    for (int i=cellZones.length-1; i >= 0; i--) {
+      if (zoneBounds[cellZones[i]].contains(x, y)) return cellZones[i];
+    }
+    return -1;
+  }
+
+
+  public int getOverlayCount() {return overlayCount;}
+
+  public boolean isOverlayVisible(int n) {return overlayVisible[n];}
+
+  /**
+   * Shows or hides an overlay, repainting only the area it covers.
+   */
+  public void setOverlayVisible(int n, boolean b) {
+    if (overlayVisible[n] == b) return;
+    overlayVisible[n] = b;
+    pronoun.repaint(toView(overlayBounds[n]));
+  }
+
+
+  public double getZoom() {return zoom;}
+
+  /**
+   * Zooms in or out.
+   *
+   * @param newIndex an index into ZOOM_LEVELS
+   * @param x a point on this component to keep in place
+   * @param y a point on this component to keep in place
+   */
+  private void setZoomIndex(int newIndex, int x, int y) {
+    double oldZoom = zoom;
+    zoomIndex = newIndex;
+    zoom = ZOOM_LEVELS[newIndex];
+
+    double ratio = zoom / oldZoom;
+    panX = (int)Math.round((x + panX) * ratio) - x;
+    clampPan();
+    // The enclosing viewport handles vertical scrolling, once it knows the new height
+    final int dy = (int)Math.round(y * ratio) - y;
+    pronoun.revalidate();
+    pronoun.repaint();
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {pan(0, dy);}
+    });
+  }
+
+
+  /**
+   * Moves the map horizontally and scrolls the enclosing viewport vertically.
+   */
+  private void pan(int dx, int dy) {
+    int oldPanX = panX;
+    panX += dx;
+    clampPan();
+    if (panX != oldPanX) pronoun.repaint();
+
+    JViewport viewport = (JViewport)SwingUtilities.getAncestorOfClass(JViewport.class, pronoun);
+    if (viewport != null && dy != 0) {
+      Point viewPosition = viewport.getViewPosition();
+      int maxY = Math.max(0, viewport.getViewSize().height - viewport.getExtentSize().height);
+      viewPosition.y = Math.max(0, Math.min(maxY, viewPosition.y + dy));
+      viewport.setViewPosition(viewPosition);
+    }
+  }
+
+  private void clampPan() {
+    panX = Math.max(0, Math.min(panX, getMapSize().width - pronoun.getWidth()));
+  }
+
+
+  /**
+   * Returns the size of the main image, as zoomed.
+   */
+  private Dimension getMapSize() {
+    if (mainBounds == null) return new Dimension(0, 0);
+    return new Dimension((int)Math.ceil(mainBounds.width * zoom), (int)Math.ceil(mainBounds.height * zoom));
+  }
+
+  /**
+   * Converts image coordinates to this component's.
+   */
+  private Rectangle toView(Rectangle r) {
+    int x1 = (int)Math.floor(r.x * zoom) - panX;
+    int y1 = (int)Math.floor(r.y * zoom);
+    int x2 = (int)Math.ceil((r.x + r.width) * zoom) - panX;
+    int y2 = (int)Math.ceil((r.y + r.height) * zoom);
+    return new Rectangle(x1, y1, x2-x1, y2-y1);
+  }
+
+
+  public Dimension getPreferredSize() {
+    if (mainBounds == null || isPreferredSizeSet()) return super.getPreferredSize();
+    return getMapSize();
+  }
+
+  public Dimension getMinimumSize() {
+    // Wide maps can be panned, so only the height is needed
+    if (mainBounds == null || isMinimumSizeSet()) return super.getMinimumSize();
+    return new Dimension(1, getMapSize().height);
+  }
+
+  public void setBounds(int x, int y, int width, int height) {
+    super.setBounds(x, y, width, height);
+    clampPan();
+  }
+
+
+  public void paintComponent(Graphics g) {
+    Rectangle clip = g.getClipBounds();
+
+    // Images are drawn scaled, edges are drawn at scaled positions
+    Graphics2D imageG = (Graphics2D)g.create();
+    Graphics2D edgeG = (Graphics2D)g.create();
+    try {
+      imageG.translate(-panX, 0);
+      imageG.scale(zoom, zoom);
+      edgeG.setStroke(EDGE_STROKE);
+
+      if (mainIcon != null && intersects(clip, toView(mainBounds))) {
+        mainIcon.paintIcon(pronoun, imageG, mainBounds.x, mainBounds.y);
+      }
+      for (int i=0; i < overlayCount; i++) {
+        Rectangle r = toView(overlayBounds[i]);
+        if (!intersects(clip, r)) continue;
+        if (overlayVisible[i]) overlayIcons[i].paintIcon(pronoun, imageG, overlayBounds[i].x, overlayBounds[i].y);
+        else paintEdges(edgeG, r, Color.GRAY);
+      }
+      for (int z=0; z < zoneCount; z++) {
+        Rectangle r = toView(zoneBounds[z]);
+        if (!intersects(clip, r)) continue;
+        if (zoneOverlays[z] != -1) paintEdges(edgeG, r, Color.ORANGE);
+        else if (zoneLinks[z] != -1) paintEdges(edgeG, r, Color.GREEN);
+        else paintEdges(edgeG, r, Color.BLUE);
+      }
+    }
+    finally {
+      imageG.dispose();
+      edgeG.dispose();
+    }
+  }
+
+  private static boolean intersects(Rectangle clip, Rectangle r) {
+    return (clip == null || clip.intersects(r));
+  }
+
+  private static void paintEdges(Graphics2D g2, Rectangle r, Color c) {
+    g2.setColor(c);
+    g2.drawRect(r.x+1, r.y+1, r.width-2, r.height-2);
+  }
+}
@@ -32,11 +32,60 @@ import org.openuhs.core.*;
 
 /**
  * A JPanel that displays a node and its children.
+ * <br />Children are shown as a virtual list: components are only built
+ * for rows in or near the enclosing viewport, text areas are recycled
+ * as rows scroll out of view, and rows not yet built are assumed to be
+ * as tall as the average of those measured. Opening a node takes the
+ * same time however many children it has.
+ * <br />Given a UHSTextPreparer, text is styled on a background thread
+ * where it'd take a while, and rows fill in when it's ready. Likewise,
+ * a UHSImageService decodes images in the background, and a placeholder
+ * is drawn until then.
+ * <br />Hotspot nodes are drawn whole, by a single HotSpotCanvas.
  */
 public class NodePanel extends JScrollablePanel {
+  private static final String ROW_KEY = "NodePanel.row";
+  private static final int ROW_INSET_X = 2;
+  private static final int ROW_INSET_Y = 1;
+  private static final int DEFAULT_ROW_HEIGHT = 40;
+  private static final int DEFAULT_VIEW_HEIGHT = 800;
+  private static final int OVERSCAN = 200;
+  private static final int BYTES_PER_LAID_OUT_CHAR = 100;
+
   private NodePanel pronoun = this;
   private UHSNode node = null;
   private UHSReaderNavCtrl navCtrl = null;
+  private UHSTextPreparer textPreparer = null;
+  private UHSImageService imageService = null;
+
+  // Virtual list state, null for hotspot nodes
+  private JComponent[] rowComponents = null;
+  private int[] rowHeights = null;
+  private int visibleCount = 0;
+  private int measuredWidth = -1;
+  private long measuredSum = 0;
+  private int measuredCount = 0;
+  private int lastRowsHeight = -1;
+  private ArrayList textPool = new ArrayList();
+  private MouseListener clickListener = null;
+
+  private JViewport viewport = null;
+  private ChangeListener viewportListener = new ChangeListener() {
+    public void stateChanged(ChangeEvent e) {
+      layoutRows();
+      pronoun.repaint();
+    }
+  };
+  private ChangeListener preparerListener = new ChangeListener() {
+    public void stateChanged(ChangeEvent e) {
+      attachPreparedRuns();
+    }
+  };
+  private ChangeListener imageListener = new ChangeListener() {
+    public void stateChanged(ChangeEvent e) {
+      pronoun.repaint();
+    }
+  };
 
 
   /**
@@ -45,8 +94,21 @@ public class NodePanel extends JScrollablePanel {
    * @param showAll true if all child hints should be revealed, false otherwise
    */
   public NodePanel(UHSNode n, UHSReaderNavCtrl c, boolean showAll) {
+    this(n, c, showAll, null, null);
+  }
+
+  /**
+   * @param n the UHSNode to be used
+   * @param c callback used to replace this panel when a child is clicked
+   * @param showAll true if all child hints should be revealed, false otherwise
+   * @param p a shared preparer for styled text, or null to style it as rows are built
+   * @param is a shared image decoder, or null to decode images as they're shown
+   */
+  public NodePanel(UHSNode n, UHSReaderNavCtrl c, boolean showAll, UHSTextPreparer p, UHSImageService is) {
     node = n;
     navCtrl = c;
+    textPreparer = p;
+    imageService = is;
 
     GridBagLayout layoutGridbag = new GridBagLayout();
     GridBagConstraints layoutC = new GridBagConstraints();
@@ -58,166 +120,53 @@ public class NodePanel extends JScrollablePanel {
       layoutC.gridwidth = GridBagConstraints.REMAINDER;  //End Row
     pronoun.setLayout(layoutGridbag);
 
-    MouseListener clickListener = new MouseAdapter() {
+    clickListener = new MouseAdapter() {
       public void mouseClicked(MouseEvent e) {
         if (pronoun.getParent() != null) {
-          JComponent thisComponent = (JComponent)e.getSource();
-          JComponent parent = (JComponent)pronoun.getParent();
-          for (int i=0; i < ((JComponent)thisComponent.getParent()).getComponentCount(); i++) {
-            if ( ((JComponent)thisComponent.getParent()).getComponent(i).equals(thisComponent) ) {
-              if (node.getChild(i).isGroup())
-                navCtrl.setReaderNode(node.getChild(i));
-              else if (node.getChild(i).isLink()) {
-                int targetIndex = node.getChild(i).getLinkTarget();
-                navCtrl.setReaderNode(targetIndex);
-              }
-              break;
-            }
-          }
-        }
-      }
-    };
-
-    MouseInputListener hotspotListener = new MouseInputAdapter() {
-      Cursor zoneCursor = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR);
-      Cursor normCursor = Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR);
-
-      private int getZone(UHSHotSpotNode nick, int x, int y) {
-        for (int i=1; i < nick.getChildCount(); i++) {
-          int[] coords = nick.getCoords(nick.getChild(i));
-          if (x > coords[0] && y > coords[1] && x < coords[0]+coords[2] && y < coords[1]+coords[3]) {
-            return i;
+          // Rows are recycled, so each remembers which child it shows
+          Object row = ((JComponent)e.getSource()).getClientProperty(ROW_KEY);
+          if (row == null) return;
+          UHSNode tmpNode = node.getChild(((Integer)row).intValue());
+          if (tmpNode.isGroup())
+            navCtrl.setReaderNode(tmpNode);
+          else if (tmpNode.isLink()) {
+            int targetIndex = tmpNode.getLinkTarget();
+            navCtrl.setReaderNode(targetIndex);
           }
         }
-        return -1;
-      }
-      public void mouseMoved(MouseEvent e) {
-        if (pronoun.getParent() != null) {
-          JComponent thisComponent = (JComponent)e.getSource();
-          UHSHotSpotNode nick = (UHSHotSpotNode)node;
-
-          int x = e.getX(); int y = e.getY();
-
-          if (getZone(nick, x, y) != -1) thisComponent.setCursor(zoneCursor);
-          else thisComponent.setCursor(normCursor);
-        }
-      }
-    };
-
-    MouseListener zoneListener = new MouseInputAdapter() {
-      Cursor zoneCursor = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR);
-      Cursor normCursor = Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR);
-
-      public void mouseEntered(MouseEvent e) {
-        ZonePanel thisComponent = (ZonePanel)e.getSource();
-        thisComponent.setCursor(zoneCursor);
-      }
-      public void mouseExited(MouseEvent e) {
-        ZonePanel thisComponent = (ZonePanel)e.getSource();
-        thisComponent.setCursor(normCursor);
-      }
-      public void mouseClicked(MouseEvent e) {
-        ZonePanel thisComponent = (ZonePanel)e.getSource();
-        ZonePanel zoneTarget = thisComponent.getZoneTarget();
-        int targetIndex = thisComponent.getLinkTarget();
-        if (zoneTarget != null)
-          zoneTarget.setContentsVisible(!zoneTarget.getContentsVisible());
-        else if (targetIndex != -1) {
-          navCtrl.setReaderNode(targetIndex);
-        }
       }
     };
 
     boolean allgroup = true;
     if (node instanceof UHSHotSpotNode) {
-      UHSHotSpotNode nick = (UHSHotSpotNode)node;
-      JLayeredPane sharedPanel = new JLayeredPane();
-
+      Icon[] icons = new Icon[node.getChildCount()];
       for (int i=0; i < node.getChildCount(); i++) {
-        int childContentType = node.getChild(i).getContentType();
-        if (childContentType == UHSNode.STRING) {
-          int[] coords = nick.getCoords(nick.getChild(i));
-          ZonePanel spotPanel = new ZonePanel();
-            //spotPanel.setToolTipText( (String)node.getChild(i).getContent() );
-            spotPanel.setBounds(coords[0], coords[1], coords[2], coords[3]);
-            sharedPanel.add(spotPanel, JLayeredPane.PALETTE_LAYER, 0);
-            spotPanel.addMouseListener(zoneListener);
-          if (node.getChild(i).isLink()) {
-            spotPanel.setLinkTarget(node.getChild(i).getLinkTarget());
-          }
-        }
-        else if (childContentType == UHSNode.IMAGE) {
-          int[] coords = nick.getCoords(nick.getChild(i));
-
-          JLabel imageLbl = new JLabel(new ImageIcon((byte[])node.getChild(i).getContent()));
-
-          ZonePanel contentPanel = new ZonePanel(imageLbl);
-            Dimension pSize = contentPanel.getPreferredSize();
-            contentPanel.setBounds(coords[4], coords[5], pSize.width, pSize.height);
-            sharedPanel.add(contentPanel, JLayeredPane.DEFAULT_LAYER, 0);
-          if (i == 0) {
-            contentPanel.setContentsVisible(true);
-            sharedPanel.setPreferredSize(pSize);
-            sharedPanel.setMinimumSize(pSize);
-          } else {
-            ZonePanel spotPanel = new ZonePanel();
-              spotPanel.setZoneTarget(contentPanel);
-              spotPanel.setBounds(coords[0], coords[1], coords[2], coords[3]);
-              sharedPanel.add(spotPanel, JLayeredPane.PALETTE_LAYER, 0);
-              spotPanel.addMouseListener(zoneListener);
-          }
-        }
+        if (node.getChild(i).getContentType() == UHSNode.IMAGE) icons[i] = getImageIcon(node.getChild(i));
       }
-      pronoun.add(sharedPanel, layoutC);
+      HotSpotCanvas canvas = new HotSpotCanvas((UHSHotSpotNode)node, icons, navCtrl);
+      pronoun.add(canvas, layoutC);
       layoutC.gridy++;
     }
     else {
       for (int i=0; i < node.getChildCount(); i++) {
         UHSNode tmpNode = node.getChild(i);
-        int contentType = node.getChild(i).getContentType();
-
-        if (contentType == UHSNode.STRING) {
-          UHSTextArea tmpUHSArea = new UHSTextArea(tmpNode);
-            tmpUHSArea.setEditable(false);
-            tmpUHSArea.setBorder(BorderFactory.createEtchedBorder());
-            tmpUHSArea.setVisible(i==0 || showAll);
-            pronoun.add(tmpUHSArea, layoutC);
-          layoutC.gridy++;
-          if (tmpNode.isGroup() || tmpNode.isLink()) {
-            tmpUHSArea.addMouseListener(clickListener);
-          }
-          else if (tmpNode.getType().equals("Blank") == false) {
-            allgroup = false;
-          }
-        }
-        else {
-          JComponent tmpComp = null;
-          if (contentType == UHSNode.IMAGE)
-            tmpComp = new JLabel(new ImageIcon((byte[])tmpNode.getContent()));
-          else if (contentType == UHSNode.AUDIO)
-            tmpComp = new MinimalSoundPlayer((byte[])tmpNode.getContent());
-          else
-            tmpComp = new JLabel("^UNKNOWN CONTENT^");
-          JPanel tmpPanel = new JPanel();
-            tmpPanel.add(tmpComp);
-            tmpPanel.setVisible(i==0 || showAll);
-            pronoun.add(tmpPanel, layoutC);
-          layoutC.gridy++;
+        if (tmpNode.getContentType() == UHSNode.STRING && !tmpNode.isGroup() && !tmpNode.isLink() && !tmpNode.getType().equals("Blank")) {
+          allgroup = false;
+          break;
         }
       }
+      pronoun.setLayout(null);
+      rowComponents = new JComponent[node.getChildCount()];
+      rowHeights = new int[node.getChildCount()];
+      if (textPreparer != null) textPreparer.prepareChildren(node);
     }
+
     if (allgroup || showAll) {
-      for (int i=0; i < pronoun.getComponentCount(); i++) {
-        ((JComponent)pronoun.getComponent(i)).setVisible(true);
-      }
+      visibleCount = node.getChildCount();
       node.setRevealedAmount(node.getChildCount());
     } else {
-      for (int i=0; (i < pronoun.getComponentCount()) && (i < node.getRevealedAmount()); i++) {
-        ((JComponent)pronoun.getComponent(i)).setVisible(true);
-      }
+      visibleCount = Math.min(node.getChildCount(), Math.max(1, node.getRevealedAmount()));
     }
-    layoutC.weighty = 1;
-    //pronoun.add(new JLabel(""), layoutC);
 
     pronoun.revalidate();
     pronoun.repaint();
@@ -240,16 +189,52 @@ public class NodePanel extends JScrollablePanel {
    * @return the child's index or -1 if no more to see
    */
   public int showNext() {
-    for (int i=0; i < pronoun.getComponentCount(); i++) {
-      if ( ((JComponent)pronoun.getComponent(i)).isVisible() == false ) {
-        ((JComponent)pronoun.getComponent(i)).setVisible(true);
-        node.setRevealedAmount(node.getRevealedAmount()+1);
-        pronoun.revalidate();
-        pronoun.repaint();
-        return i;
+    return showNext(1);
+  }
+
+  /**
+   * Reveals several child hints at once, with a single layout.
+   *
+   * @param count the most hints to reveal
+   * @return the last revealed child's index or -1 if no more to see
+   */
+  public int showNext(int count) {
+    if (rowComponents == null || visibleCount >= node.getChildCount() || count < 1) return -1;
+
+    int amount = Math.min(count, node.getChildCount() - visibleCount);
+    visibleCount += amount;
+    node.setRevealedAmount(node.getRevealedAmount()+amount);
+    pronoun.revalidate();
+    pronoun.repaint();
+    return visibleCount-1;
+  }
+
+
+  /**
+   * Roughly estimates the memory this panel's components use.
+   * <br />Images held by an image service are shared, so they're not counted.
+   *
+   * @return a size in bytes
+   */
+  public long getMemoryEstimate() {
+    long result = 1024;
+    if (rowComponents == null) {
+      if (imageService == null) result += (long)pronoun.getPreferredSize().width * pronoun.getPreferredSize().height * 4;
+      return result + node.getChildCount() * 64;
+    }
+
+    result += rowComponents.length * 12;
+    for (int i=0; i < rowComponents.length; i++) {
+      JComponent rowComp = rowComponents[i];
+      if (rowComp == null) continue;
+      if (rowComp instanceof UHSTextArea) {
+        result += 1024 + ((UHSTextArea)rowComp).getText().length() * BYTES_PER_LAID_OUT_CHAR;
+      } else {
+        result += 2048;
+        if (imageService == null) result += (long)rowComp.getPreferredSize().width * rowComp.getPreferredSize().height * 4;
       }
     }
-    return -1;
+    return result + textPool.size() * 1024;
   }
 
 
@@ -262,4 +247,197 @@ public class NodePanel extends JScrollablePanel {
     if (node.getChildCount() == node.getRevealedAmount()) return true;
     else return false;
   }
+
+
+  public void addNotify() {
+    super.addNotify();
+    viewport = (JViewport)SwingUtilities.getAncestorOfClass(JViewport.class, pronoun);
+    if (viewport != null && rowComponents != null) viewport.addChangeListener(viewportListener);
+    if (textPreparer != null && rowComponents != null) textPreparer.addChangeListener(preparerListener);
+    if (imageService != null) imageService.addChangeListener(imageListener);
+  }
+
+  public void removeNotify() {
+    if (viewport != null) viewport.removeChangeListener(viewportListener);
+    if (textPreparer != null) textPreparer.removeChangeListener(preparerListener);
+    if (imageService != null) imageService.removeChangeListener(imageListener);
+    viewport = null;
+    super.removeNotify();
+  }
+
+
+  public Dimension getPreferredSize() {
+    if (rowComponents == null) return super.getPreferredSize();
+    return new Dimension(1, getRowsHeight());
+  }
+
+  public void doLayout() {
+    if (rowComponents == null) super.doLayout();
+    else layoutRows();
+  }
+
+
+  /**
+   * Builds, positions, and releases row components to cover the visible area.
+   */
+  private void layoutRows() {
+    if (rowComponents == null) return;
+    int width = pronoun.getWidth() - ROW_INSET_X*2;
+    if (width <= 0) return;
+
+    if (width != measuredWidth) {
+      // Wrapping changes with the width
+      Arrays.fill(rowHeights, 0);
+      measuredSum = 0;
+      measuredCount = 0;
+      measuredWidth = width;
+    }
+
+    Rectangle viewRect = pronoun.getVisibleRect();
+    // Scrolled out of sight, as when swapped back into the viewport: leave rows be
+    if (viewport != null && viewRect.isEmpty()) return;
+    int viewTop = viewRect.y - OVERSCAN;
+    int viewBottom = viewRect.y + (viewRect.height > 0 ? viewRect.height : DEFAULT_VIEW_HEIGHT) + OVERSCAN;
+
+    int y = 0;
+    for (int i=0; i < rowComponents.length; i++) {
+      boolean inView = (i < visibleCount && y + getRowHeight(i) + ROW_INSET_Y*2 > viewTop && y < viewBottom);
+      if (inView) {
+        JComponent rowComp = rowComponents[i];
+        if (rowComp == null) rowComp = rowComponents[i] = buildRow(i);
+        if (rowComp.getParent() != pronoun) pronoun.add(rowComp);
+
+        // Built rows are measured each time, in case fonts changed
+        rowComp.setSize(width, Short.MAX_VALUE);
+        setRowHeight(i, rowComp.getPreferredSize().height);
+        rowComp.setBounds(ROW_INSET_X, y+ROW_INSET_Y, width, rowHeights[i]);
+        rowComp.validate();
+      }
+      else if (rowComponents[i] != null) {
+        releaseRow(i);
+      }
+      if (i < visibleCount) y += getRowHeight(i) + ROW_INSET_Y*2;
+    }
+
+    if (y != lastRowsHeight) {
+      lastRowsHeight = y;
+      pronoun.revalidate();
+    }
+  }
+
+
+  /**
+   * Returns the height of all revealed rows, measured or estimated.
+   */
+  private int getRowsHeight() {
+    int result = 0;
+    for (int i=0; i < visibleCount; i++) {
+      result += getRowHeight(i) + ROW_INSET_Y*2;
+    }
+    return result;
+  }
+
+  private int getRowHeight(int n) {
+    if (rowHeights[n] > 0) return rowHeights[n];
+    if (measuredCount > 0) return (int)(measuredSum / measuredCount);
+    return DEFAULT_ROW_HEIGHT;
+  }
+
+  private void setRowHeight(int n, int height) {
+    if (rowHeights[n] > 0) {
+      measuredSum -= rowHeights[n];
+      measuredCount--;
+    }
+    rowHeights[n] = Math.max(1, height);
+    measuredSum += rowHeights[n];
+    measuredCount++;
+  }
+
+
+  /**
+   * Creates a component for a child, reusing a spare text area if possible.
+   */
+  private JComponent buildRow(int n) {
+    UHSNode tmpNode = node.getChild(n);
+    int contentType = tmpNode.getContentType();
+
+    JComponent result = null;
+    if (contentType == UHSNode.STRING) {
+      UHSTextArea tmpUHSArea = null;
+      UHSTextRuns tmpRuns = (textPreparer != null ? textPreparer.getRuns(tmpNode) : UHSTextRuns.parse(tmpNode));
+      if (textPool.size() > 0) {
+        tmpUHSArea = (UHSTextArea)textPool.remove(textPool.size()-1);
+        tmpUHSArea.setNode(tmpNode, tmpRuns);
+      }
+      else {
+        tmpUHSArea = new UHSTextArea(tmpNode, tmpRuns);
+          tmpUHSArea.setBorder(BorderFactory.createEtchedBorder());
+          tmpUHSArea.addMouseListener(clickListener);
+      }
+      result = tmpUHSArea;
+    }
+    else {
+      JComponent tmpComp = null;
+      if (contentType == UHSNode.IMAGE)
+        tmpComp = new JLabel(getImageIcon(tmpNode));
+      else if (contentType == UHSNode.AUDIO)
+        tmpComp = new MinimalSoundPlayer((byte[])tmpNode.getContent());
+      else
+        tmpComp = new JLabel("^UNKNOWN CONTENT^");
+      JPanel tmpPanel = new JPanel();
+        tmpPanel.add(tmpComp);
+      result = tmpPanel;
+    }
+    result.putClientProperty(ROW_KEY, new Integer(n));
+    return result;
+  }
+
+
+  /**
+   * Returns an icon for an image node, from the image service if there is one.
+   */
+  private Icon getImageIcon(UHSNode imageNode) {
+    if (imageService != null) return imageService.getIcon(imageNode);
+    return new ImageIcon((byte[])imageNode.getContent());
+  }
+
+
+  /**
+   * Gives built text rows that were waiting any runs the preparer now has.
+   */
+  private void attachPreparedRuns() {
+    if (rowComponents == null) return;
+    boolean changed = false;
+    for (int i=0; i < rowComponents.length; i++) {
+      if (!(rowComponents[i] instanceof UHSTextArea)) continue;
+      UHSTextArea tmpUHSArea = (UHSTextArea)rowComponents[i];
+      if (tmpUHSArea.getRuns() != null) continue;
+
+      UHSTextRuns tmpRuns = textPreparer.getCachedRuns(tmpUHSArea.getNode());
+      if (tmpRuns == null) continue;
+      tmpUHSArea.setRuns(tmpRuns);
+      changed = true;
+    }
+    if (changed) {
+      layoutRows();
+      pronoun.repaint();
+    }
+  }
+
+
+  /**
+   * Takes a row's component out of the panel.
+   * <br />Text areas go back in the pool. Images and sounds are kept,
+   * so a playing sound isn't cut off by scrolling.
+   */
+  private void releaseRow(int n) {
+    JComponent rowComp = rowComponents[n];
+    if (rowComp.getParent() == pronoun) pronoun.remove(rowComp);
+    if (rowComp instanceof UHSTextArea) {
+      rowComp.putClientProperty(ROW_KEY, null);
+      ((UHSTextArea)rowComp).setRuns(null);  // Drop the old layout
+      textPool.add(rowComp);
+      rowComponents[n] = null;
+    }
+  }
 }
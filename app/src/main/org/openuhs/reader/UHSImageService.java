@@ -0,0 +1,723 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.openuhs.reader;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.lang.ref.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import javax.swing.*;
+import javax.swing.event.*;
+import java.util.*;
+
+import org.openuhs.core.*;
+
+
+/**
+ * Decodes image nodes on background threads, and remembers the results.
+ * <br />Decoded images are kept in a cache bounded by an estimate of
+ * their pixel bytes, least recently used first out. Evicted images are
+ * only softly referenced, so they may still be around if needed again.
+ * <br />
+ * <br />Images can also be prefetched, if they're likely to be shown
+ * soon. That only happens when nothing else is queued, and only up to
+ * a quarter of the cache's bytes per cancelPrefetch().
+ * <br />
+ * <br />Icons from getIcon() draw a placeholder until their image is
+ * ready. Listeners are notified on the event thread whenever requested
+ * images are cached, a batch at a time, and should repaint.
+ * <br />
+ * <br />Images with more than TILED_MIN_PIXELS are never decoded whole.
+ * Their icons draw square tiles instead, decoded on demand for just the
+ * area being painted, and subsampled to suit the Graphics' scale. Tiles
+ * have a small cache of their own, so memory for huge images depends on
+ * the size of the view rather than the image.
+ */
+public class UHSImageService {
+  public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+  private static final long MAX_TILE_BYTES = 16L*1024*1024;
+  public static final int TILED_MIN_PIXELS = 2048*2048;
+  public static final int TILE_SIZE = 256;
+  private static final int MAX_BATCH_TILES = 8;
+  private static final int THREAD_COUNT = 2;
+  private static final Color PLACEHOLDER_COLOR = new Color(224, 224, 224);
+
+  private UHSErrorHandler errorHandler = null;
+  private volatile UHSReaderMonitor monitor = null;
+  private UHSImageService pronoun = this;
+  private long maxBytes = DEFAULT_MAX_BYTES;
+
+  // Access-ordered, so the least recently used images are evicted first
+  private LinkedHashMap cache = new LinkedHashMap(16, 0.75f, true);
+  private long cachedBytes = 0;
+  private HashMap evicted = new HashMap();  // SoftReferences
+  private HashMap sizes = new HashMap();
+  private HashSet failed = new HashSet();
+  private LinkedHashMap tileCache = new LinkedHashMap(16, 0.75f, true);
+  private long tileBytes = 0;
+
+  private LinkedList queue = new LinkedList();
+  private LinkedList prefetchQueue = new LinkedList();
+  private long prefetchedBytes = 0;
+  private HashSet wanted = new HashSet();  // Requested nodes and tiles, to notify about
+  private HashSet decoding = new HashSet();
+  private int generation = 0;
+  private boolean notifyPending = false;
+  private Thread[] workers = null;
+
+  private EventListenerList listenerList = new EventListenerList();
+
+
+  public UHSImageService() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param maxBytes the approximate memory to allow for decoded images
+   */
+  public UHSImageService(long maxBytes) {
+    this.maxBytes = maxBytes;
+    setErrorHandler(new DefaultUHSErrorHandler(System.err));
+  }
+
+
+  /**
+   * Sets the error handler to notify of exceptions.
+   * This is a convenience for logging/muting.
+   * The default handler prints to System.err.
+   *
+   * @param eh the error handler, or null, for quiet decoding
+   */
+  public void setErrorHandler(UHSErrorHandler eh) {
+    errorHandler = eh;
+  }
+
+
+  /**
+   * Sets a monitor to time decoding with.
+   *
+   * @param m the monitor, or null
+   */
+  public void setMonitor(UHSReaderMonitor m) {
+    monitor = m;
+  }
+
+
+  /**
+   * Returns an icon for an image node.
+   * <br />Until the image is decoded, the icon draws a placeholder
+   * and asks for it.
+   */
+  public Icon getIcon(UHSNode n) {
+    return new NodeIcon(n);
+  }
+
+
+  /**
+   * Returns a node's image, if it's already been decoded.
+   *
+   * @return the image, or null
+   */
+  public synchronized Image getCachedImage(UHSNode n) {
+    Image result = (Image)cache.get(n);
+    if (result != null) return result;
+
+    SoftReference ref = (SoftReference)evicted.remove(n);
+    if (ref != null) result = (Image)ref.get();
+    if (result != null) store(n, result);
+    return result;
+  }
+
+
+  /**
+   * Queues a node's image to be decoded ahead of everything else.
+   */
+  public synchronized void requestImage(UHSNode n) {
+    if (cache.containsKey(n)) {
+      // Whoever asked painted a placeholder, after the image arrived
+      scheduleNotify();
+      return;
+    }
+    if (failed.contains(n)) return;
+
+    wanted.add(n);
+    if (decoding.contains(n)) return;
+    prefetchQueue.remove(n);
+    queue.remove(n);
+    queue.addFirst(n);
+    startWorkers();
+  }
+
+
+  /**
+   * Queues a node's image to be decoded when there's nothing else to do.
+   */
+  public synchronized void prefetchImage(UHSNode n) {
+    if (n.getContentType() != UHSNode.IMAGE || cache.containsKey(n) || failed.contains(n)) return;
+    prefetchQueue.add(n);
+    startWorkers();
+  }
+
+
+  /**
+   * Forgets images queued for prefetching, and resets the prefetch budget.
+   */
+  public synchronized void cancelPrefetch() {
+    prefetchQueue.clear();
+    prefetchedBytes = 0;
+  }
+
+
+  /**
+   * Returns an image's dimensions, reading only its header if it hasn't been decoded.
+   *
+   * @return the size, or 0x0 if the image is unreadable
+   */
+  public Dimension getImageSize(UHSNode n) {
+    synchronized (pronoun) {
+      Dimension result = (Dimension)sizes.get(n);
+      if (result != null) return new Dimension(result);
+    }
+
+    Dimension result = null;
+    if (n.getContentType() == UHSNode.IMAGE) result = readImageSize((byte[])n.getContent());
+    if (result == null) result = new Dimension(0, 0);
+    synchronized (pronoun) {
+      sizes.put(n, result);
+    }
+    return new Dimension(result);
+  }
+
+
+  /**
+   * Determines whether an image is too large to decode whole.
+   */
+  public boolean isTiled(UHSNode n) {
+    Dimension size = getImageSize(n);
+    return ((long)size.width * size.height > TILED_MIN_PIXELS);
+  }
+
+
+  /**
+   * Returns the subsampling level that suits a scale.
+   * <br />Level n tiles have every 2^n-th pixel of every 2^n-th row.
+   *
+   * @param scale the ratio of painted pixels to image pixels
+   * @return a level, 0 for full resolution
+   */
+  public static int getTileLevel(double scale) {
+    int result = 0;
+    while (result < 16 && (1 << (result+1)) * scale <= 1.0) result++;
+    return result;
+  }
+
+
+  /**
+   * Forgets all images and queued nodes (e.g., when a new file is opened).
+   */
+  public synchronized void clear() {
+    cache.clear();
+    cachedBytes = 0;
+    evicted.clear();
+    sizes.clear();
+    failed.clear();
+    tileCache.clear();
+    tileBytes = 0;
+    queue.clear();
+    prefetchQueue.clear();
+    prefetchedBytes = 0;
+    wanted.clear();
+    generation++;
+  }
+
+
+  public void addChangeListener(ChangeListener l) {
+    listenerList.add(ChangeListener.class, l);
+  }
+
+  public void removeChangeListener(ChangeListener l) {
+    listenerList.remove(ChangeListener.class, l);
+  }
+
+
+  /**
+   * Notifies listeners that more images are available.
+   */
+  private void fireStateChanged() {
+    ChangeEvent e = new ChangeEvent(pronoun);
+    Object[] listeners = listenerList.getListenerList();
+    for (int i=listeners.length-2; i >= 0; i-=2) {
+      if (listeners[i] == ChangeListener.class) ((ChangeListener)listeners[i+1]).stateChanged(e);
+    }
+  }
+
+
+  /**
+   * Caches an image, evicting the least recently used if there are too many bytes.
+   * <br />Call this while holding this object's lock.
+   */
+  private void store(UHSNode n, Image img) {
+    Image old = (Image)cache.put(n, img);
+    if (old != null) cachedBytes -= getImageBytes(old);
+    cachedBytes += getImageBytes(img);
+
+    if (cachedBytes <= maxBytes) return;
+    Iterator it = cache.entrySet().iterator();
+    while (cachedBytes > maxBytes && cache.size() > 1 && it.hasNext()) {
+      Map.Entry entry = (Map.Entry)it.next();
+      Image eldest = (Image)entry.getValue();
+      if (eldest == img) break;
+      cachedBytes -= getImageBytes(eldest);
+      evicted.put(entry.getKey(), new SoftReference(eldest));
+      it.remove();
+    }
+
+    // Drop references the garbage collector has cleared
+    for (it = evicted.values().iterator(); it.hasNext();) {
+      if (((SoftReference)it.next()).get() == null) it.remove();
+    }
+  }
+
+
+  /**
+   * Returns a tile, if it's been decoded, or queues it.
+   * <br />Call this while holding this object's lock, then startWorkers().
+   *
+   * @return the tile, up to TILE_SIZE square, or null
+   */
+  private Image getTile(TileKey key) {
+    Image result = (Image)tileCache.get(key);
+    if (result != null || failed.contains(key)) return result;
+
+    wanted.add(key);
+    if (decoding.contains(key)) return null;
+    queue.remove(key);
+    queue.addFirst(key);  // The last painted area is likely what's on screen now
+    return null;
+  }
+
+
+  /**
+   * Caches a tile, evicting the least recently used if there are too many bytes.
+   * <br />Call this while holding this object's lock.
+   */
+  private void storeTile(TileKey key, Image img) {
+    Image old = (Image)tileCache.put(key, img);
+    if (old != null) tileBytes -= getImageBytes(old);
+    tileBytes += getImageBytes(img);
+
+    Iterator it = tileCache.values().iterator();
+    while (tileBytes > MAX_TILE_BYTES && tileCache.size() > 1 && it.hasNext()) {
+      Image eldest = (Image)it.next();
+      if (eldest == img) break;
+      tileBytes -= getImageBytes(eldest);
+      it.remove();
+    }
+  }
+
+
+  /**
+   * Estimates the memory an image uses, as 32-bit pixels.
+   */
+  private static long getImageBytes(Image img) {
+    return Math.max(1L, (long)img.getWidth(null) * img.getHeight(null) * 4);
+  }
+
+
+  /**
+   * Arranges for listeners to be notified, unless they already will be.
+   * <br />Call this while holding this object's lock.
+   */
+  private void scheduleNotify() {
+    if (notifyPending) return;
+    notifyPending = true;
+    EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        synchronized (pronoun) {notifyPending = false;}
+        fireStateChanged();
+      }
+    });
+  }
+
+
+  /**
+   * Starts the background threads, if they aren't already running.
+   * <br />Call this while holding this object's lock.
+   */
+  private void startWorkers() {
+    if (workers != null) {
+      pronoun.notifyAll();
+      return;
+    }
+    workers = new Thread[THREAD_COUNT];
+    for (int i=0; i < workers.length; i++) {
+      workers[i] = new Thread("UHSImageService-"+ i) {
+        public void run() {
+          while (true) {
+            UHSNode tmpNode = null;
+            TileKey tmpKey = null;
+            boolean prefetching = false;
+            int tmpGeneration = 0;
+            synchronized (pronoun) {
+              while (queue.size() == 0 && prefetchQueue.size() == 0) {
+                try {pronoun.wait();}
+                catch (InterruptedException e) {return;}
+              }
+              if (queue.size() > 0) {
+                Object tmpItem = queue.removeFirst();
+                if (tmpItem instanceof TileKey) tmpKey = (TileKey)tmpItem;
+                else tmpNode = (UHSNode)tmpItem;
+              } else {
+                tmpNode = (UHSNode)prefetchQueue.removeFirst();
+                prefetching = true;
+              }
+              tmpGeneration = generation;
+              if (tmpKey != null) {
+                if (tileCache.containsKey(tmpKey) || failed.contains(tmpKey) || decoding.contains(tmpKey)) continue;
+              }
+              else if (cache.containsKey(tmpNode) || failed.contains(tmpNode) || decoding.contains(tmpNode)) continue;
+            }
+
+            if (tmpKey != null) {
+              long startNanos = System.nanoTime();
+              decodeTiles(tmpKey, tmpGeneration);
+              UHSReaderMonitor tmpMonitor = monitor;
+              if (tmpMonitor != null) tmpMonitor.record(UHSReaderMonitor.IMAGE_DECODE, System.nanoTime() - startNanos, "tiles at level "+ tmpKey.level +" of "+ UHSReaderMonitor.describeNode(tmpKey.node));
+              continue;
+            }
+
+            if (prefetching) {
+              // Judge by the header whether this fits in the budget
+              Dimension size = getImageSize(tmpNode);
+              long bytes = (long)size.width * size.height * 4;
+              synchronized (pronoun) {
+                if (tmpGeneration != generation || prefetchedBytes + bytes > maxBytes/4) continue;
+                if ((long)size.width * size.height > TILED_MIN_PIXELS) continue;
+                prefetchedBytes += bytes;
+              }
+            }
+
+            synchronized (pronoun) {
+              if (cache.containsKey(tmpNode) || decoding.contains(tmpNode)) continue;
+              decoding.add(tmpNode);
+            }
+
+            Image tmpImage = null;
+            long startNanos = System.nanoTime();
+            if (tmpNode.getContentType() == UHSNode.IMAGE) tmpImage = decodeImage((byte[])tmpNode.getContent());
+            UHSReaderMonitor tmpMonitor = monitor;
+            if (tmpMonitor != null) tmpMonitor.record(UHSReaderMonitor.IMAGE_DECODE, System.nanoTime() - startNanos, (prefetching ? "prefetched " : "") + UHSReaderMonitor.describeNode(tmpNode));
+
+            synchronized (pronoun) {
+              decoding.remove(tmpNode);
+              if (tmpGeneration != generation) continue;
+              boolean notify = wanted.remove(tmpNode);
+              if (tmpImage == null) {
+                failed.add(tmpNode);
+                continue;
+              }
+              sizes.put(tmpNode, new Dimension(tmpImage.getWidth(null), tmpImage.getHeight(null)));
+              store(tmpNode, tmpImage);
+              if (notify) scheduleNotify();
+            }
+          }
+        }
+      };
+      workers[i].setDaemon(true);
+      workers[i].setPriority(Thread.NORM_PRIORITY-1);
+      workers[i].start();
+    }
+  }
+
+
+  /**
+   * Decodes an image.
+   * <br />Animated gifs are left to the toolkit, which can animate them.
+   *
+   * @return the image, or null if it couldn't be decoded
+   */
+  private Image decodeImage(byte[] bytes) {
+    try {
+      ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+      Iterator it = ImageIO.getImageReaders(iis);
+      if (!it.hasNext()) {
+        if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, pronoun, "Could not decode an image of unknown format", 0, null);
+        return null;
+      }
+      ImageReader reader = (ImageReader)it.next();
+      try {
+        reader.setInput(iis, false, true);
+        if ("gif".equalsIgnoreCase(reader.getFormatName()) && reader.getNumImages(true) > 1) {
+          Image result = Toolkit.getDefaultToolkit().createImage(bytes);
+          // The size is needed for the cache, so wait for the header
+          MediaTracker tracker = new MediaTracker(new Canvas());
+          tracker.addImage(result, 0);
+          tracker.waitForID(0);
+          return result;
+        }
+        return reader.read(0);
+      }
+      finally {
+        reader.dispose();
+        iis.close();
+      }
+    }
+    catch (InterruptedException e) {
+      return null;
+    }
+    catch (Exception e) {
+      // ImageIO throws assorted runtime exceptions on corrupt data
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, pronoun, "Could not decode an image", 0, e);
+      return null;
+    }
+  }
+
+
+  /**
+   * Decodes a tile, along with any others queued nearby.
+   * <br />Decoders generally have to read the whole image to get at any
+   * region of it, so neighboring tiles are decoded as one block, and split.
+   */
+  private void decodeTiles(TileKey key, int tmpGeneration) {
+    ArrayList keys = new ArrayList();
+    keys.add(key);
+    Rectangle block = new Rectangle(key.col, key.row, 1, 1);
+    synchronized (pronoun) {
+      for (Iterator it=queue.iterator(); it.hasNext();) {
+        Object tmpItem = it.next();
+        if (!(tmpItem instanceof TileKey) || decoding.contains(tmpItem)) continue;
+        TileKey tmpKey = (TileKey)tmpItem;
+        if (!tmpKey.isSameLevel(key)) continue;
+
+        Rectangle tmpBlock = block.union(new Rectangle(tmpKey.col, tmpKey.row, 1, 1));
+        if (tmpBlock.width > MAX_BATCH_TILES || tmpBlock.height > MAX_BATCH_TILES) continue;
+        block = tmpBlock;
+        if (!tileCache.containsKey(tmpKey)) keys.add(tmpKey);
+        it.remove();
+      }
+      decoding.addAll(keys);
+    }
+
+    Dimension size = getImageSize(key.node);
+    int span = TILE_SIZE << key.level;
+    Rectangle region = new Rectangle(block.x*span, block.y*span, block.width*span, block.height*span);
+    region = region.intersection(new Rectangle(0, 0, size.width, size.height));
+    BufferedImage blockImage = null;
+    if (!region.isEmpty()) blockImage = decodeRegion((byte[])key.node.getContent(), region, 1 << key.level);
+
+    synchronized (pronoun) {
+      decoding.removeAll(keys);
+      if (tmpGeneration != generation) return;
+      boolean notify = false;
+      for (int i=0; i < keys.size(); i++) {
+        TileKey tmpKey = (TileKey)keys.get(i);
+        if (wanted.remove(tmpKey)) notify = true;
+
+        int x = (tmpKey.col - block.x) * TILE_SIZE;
+        int y = (tmpKey.row - block.y) * TILE_SIZE;
+        if (blockImage == null || x >= blockImage.getWidth() || y >= blockImage.getHeight()) {
+          failed.add(tmpKey);
+          continue;
+        }
+        // A subimage would share the whole block's pixels, so copy
+        BufferedImage sub = blockImage.getSubimage(x, y, Math.min(TILE_SIZE, blockImage.getWidth()-x), Math.min(TILE_SIZE, blockImage.getHeight()-y));
+        WritableRaster raster = sub.copyData(sub.getRaster().createCompatibleWritableRaster(sub.getWidth(), sub.getHeight()));
+        storeTile(tmpKey, new BufferedImage(sub.getColorModel(), raster, sub.isAlphaPremultiplied(), null));
+      }
+      if (notify) scheduleNotify();
+    }
+  }
+
+
+  /**
+   * Decodes part of an image, keeping every n-th pixel of every n-th row.
+   *
+   * @return the image, or null if it couldn't be decoded
+   */
+  private BufferedImage decodeRegion(byte[] bytes, Rectangle region, int subsampling) {
+    try {
+      ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+      Iterator it = ImageIO.getImageReaders(iis);
+      if (!it.hasNext()) return null;
+      ImageReader reader = (ImageReader)it.next();
+      try {
+        reader.setInput(iis, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      }
+      finally {
+        reader.dispose();
+        iis.close();
+      }
+    }
+    catch (Exception e) {
+      if (errorHandler != null) errorHandler.log(UHSErrorHandler.ERROR, pronoun, "Could not decode part of an image", 0, e);
+      return null;
+    }
+  }
+
+
+  /**
+   * Reads an image's dimensions from its header.
+   *
+   * @return the size, or null if it couldn't be read
+   */
+  private static Dimension readImageSize(byte[] bytes) {
+    try {
+      ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+      Iterator it = ImageIO.getImageReaders(iis);
+      if (!it.hasNext()) return null;
+      ImageReader reader = (ImageReader)it.next();
+      try {
+        reader.setInput(iis, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      }
+      finally {
+        reader.dispose();
+        iis.close();
+      }
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+
+
+  /**
+   * An icon that draws a node's image, or a placeholder until it's decoded.
+   */
+  private class NodeIcon implements Icon {
+    private UHSNode node = null;
+    private Dimension size = null;
+    private boolean tiled = false;
+
+    public NodeIcon(UHSNode n) {
+      node = n;
+      size = getImageSize(n);
+      tiled = ((long)size.width * size.height > TILED_MIN_PIXELS);
+    }
+
+    public int getIconWidth() {return size.width;}
+    public int getIconHeight() {return size.height;}
+
+    public void paintIcon(Component c, Graphics g, int x, int y) {
+      if (tiled) {
+        paintTiles(c, g, x, y);
+        return;
+      }
+      Image img = getCachedImage(node);
+      if (img != null) {
+        g.drawImage(img, x, y, c);
+        return;
+      }
+      g.setColor(PLACEHOLDER_COLOR);
+      g.fillRect(x, y, size.width, size.height);
+      requestImage(node);
+    }
+
+    /**
+     * Draws the tiles that intersect the clip, at a level to suit the scale.
+     */
+    private void paintTiles(Component c, Graphics g, int x, int y) {
+      double scale = 1.0;
+      if (g instanceof Graphics2D) scale = ((Graphics2D)g).getTransform().getScaleX();
+      int level = getTileLevel(scale);
+      int span = TILE_SIZE << level;
+
+      Rectangle area = new Rectangle(x, y, size.width, size.height);
+      Rectangle clip = g.getClipBounds();
+      if (clip != null) area = area.intersection(clip);
+      if (area.isEmpty()) return;
+
+      int colMin = (area.x - x) / span;
+      int colMax = (area.x + area.width-1 - x) / span;
+      int rowMin = (area.y - y) / span;
+      int rowMax = (area.y + area.height-1 - y) / span;
+
+      // Queue every missing tile at once, so they're decoded together
+      Image[] tiles = new Image[(colMax-colMin+1) * (rowMax-rowMin+1)];
+      synchronized (pronoun) {
+        for (int row=rowMin, i=0; row <= rowMax; row++) {
+          for (int col=colMin; col <= colMax; col++) {
+            tiles[i++] = getTile(new TileKey(node, level, col, row));
+          }
+        }
+        startWorkers();
+      }
+
+      for (int row=rowMin, i=0; row <= rowMax; row++) {
+        for (int col=colMin; col <= colMax; col++) {
+          int tileX = x + col*span;
+          int tileY = y + row*span;
+          int tileW = Math.min(span, size.width - col*span);
+          int tileH = Math.min(span, size.height - row*span);
+          Image tile = tiles[i++];
+          if (tile != null) {
+            g.drawImage(tile, tileX, tileY, tileW, tileH, c);
+          } else {
+            g.setColor(PLACEHOLDER_COLOR);
+            g.fillRect(tileX, tileY, tileW, tileH);
+          }
+        }
+      }
+    }
+  }
+
+
+
+  /**
+   * Identifies a tile of a huge image.
+   */
+  private static class TileKey {
+    public UHSNode node = null;
+    public int level = 0;
+    public int col = 0;
+    public int row = 0;
+
+    public TileKey(UHSNode n, int level, int col, int row) {
+      node = n;
+      this.level = level;
+      this.col = col;
+      this.row = row;
+    }
+
+    public boolean isSameLevel(TileKey k) {
+      return (node == k.node && level == k.level);
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof TileKey)) return false;
+      TileKey k = (TileKey)o;
+      return (isSameLevel(k) && col == k.col && row == k.row);
+    }
+
+    public int hashCode() {
+      return System.identityHashCode(node) ^ (level << 28) ^ (row << 14) ^ col;
+    }
+  }
+}
@@ -0,0 +1,396 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.reader;
+
+import java.awt.EventQueue;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import org.openuhs.core.*;
+
+
+/**
+ * Times what the reader does, and watches the event thread for stalls.
+ * <br />Durations are kept in histograms by name, with power-of-two
+ * millisecond buckets, along with the slowest few and their context
+ * (the hint file, and the shape of the node involved).
+ * <br />
+ * <br />A watchdog thread posts a heartbeat to the event queue. If it
+ * isn't run within the stall threshold, the event thread's stack is
+ * sampled until it is, and the stall is remembered along with whatever
+ * the reader was doing at the time.
+ *
+ * <pre> Typical usage:
+ * UHSReaderMonitor monitor = new UHSReaderMonitor(200);
+ * readerPanel.setMonitor(monitor);
+ * monitor.start();
+ * ...
+ * System.out.println(monitor.getReport());</pre>
+ */
+public class UHSReaderMonitor {
+  public static final String SET_READER_NODE = "setReaderNode";
+  public static final String OPEN_FILE = "openFile";
+  public static final String IMAGE_DECODE = "imageDecode";
+  public static final String PANEL_CONSTRUCTION = "panelConstruction";
+  public static final String EVENT_QUEUE_DELAY = "eventQueueDelay";
+
+  public static final long DEFAULT_STALL_MILLIS = 200;
+  private static final long HEARTBEAT_MILLIS = 100;
+  private static final int BUCKET_COUNT = 16;
+  private static final int MAX_SLOWEST = 5;
+  private static final int MAX_STALLS = 20;
+  private static final int MAX_STALL_SAMPLES = 5;
+  private static final int MAX_STACK_DEPTH = 40;
+
+  private UHSErrorHandler errorHandler = null;
+  private UHSReaderMonitor pronoun = this;
+  private long stallMillis = DEFAULT_STALL_MILLIS;
+  private long startTime = System.currentTimeMillis();
+
+  private LinkedHashMap histograms = new LinkedHashMap();  // Names to Histograms, in order of first use
+  private ArrayList stalls = new ArrayList();  // The longest Stalls, longest first
+  private int stallCount = 0;
+
+  // What the event thread is doing, for stall reports
+  private volatile String fileName = null;
+  private volatile String activity = null;
+  private int activityDepth = 0;
+
+  private volatile Thread eventThread = null;
+  private Thread watchdog = null;
+  private volatile boolean running = false;
+
+
+  public UHSReaderMonitor() {
+    this(DEFAULT_STALL_MILLIS);
+  }
+
+  /**
+   * @param stallMillis how long the event thread can be unresponsive before it's a stall
+   */
+  public UHSReaderMonitor(long stallMillis) {
+    this.stallMillis = Math.max(1, stallMillis);
+  }
+
+
+  /**
+   * Sets the error handler to notify of stalls, as they end.
+   *
+   * @param eh the error handler, or null, to only remember them
+   */
+  public void setErrorHandler(UHSErrorHandler eh) {
+    errorHandler = eh;
+  }
+
+
+  /**
+   * Sets the name of the hint file being read, to prefix contexts with.
+   */
+  public void setFileName(String s) {
+    fileName = s;
+  }
+
+
+  /**
+   * Notes that the event thread has started doing something.
+   * <br />Nested calls are timed, but stalls are blamed on the outermost.
+   *
+   * @param context a description (e.g., of a node), or null
+   * @return a start time to pass to end()
+   */
+  public long begin(String name, String context) {
+    if (activityDepth++ == 0) activity = name + (context != null ? " "+ context : "");
+    return System.nanoTime();
+  }
+
+  /**
+   * Notes that the event thread has finished something, and times it.
+   *
+   * @param startNanos the value begin() returned, or an earlier System.nanoTime()
+   */
+  public void end(String name, String context, long startNanos) {
+    record(name, System.nanoTime() - startNanos, context);
+    if (activityDepth > 0 && --activityDepth == 0) activity = null;
+  }
+
+
+  /**
+   * Adds a duration to a histogram.
+   * <br />This can be called from any thread.
+   *
+   * @param name the histogram's name
+   * @param nanos the duration
+   * @param context a description (e.g., of a node), or null
+   *   The current file's name will be prepended, if there is a context.
+   */
+  public void record(String name, long nanos, String context) {
+    String tmpFileName = fileName;
+    if (tmpFileName != null && context != null) context = tmpFileName + (context != null ? ": "+ context : "");
+
+    synchronized (pronoun) {
+      Histogram h = (Histogram)histograms.get(name);
+      if (h == null) {
+        h = new Histogram();
+        histograms.put(name, h);
+      }
+      h.add(nanos, context);
+    }
+  }
+
+
+  /**
+   * Describes a node's shape, for contexts.
+   */
+  public static String describeNode(UHSNode n) {
+    StringBuffer buf = new StringBuffer();
+    buf.append(n.getType());
+    if (n.getContentType() == UHSNode.STRING) {
+      String content = (String)n.getContent();
+      if (content.length() > 40) content = content.substring(0, 37) +"...";
+      buf.append(" \"").append(content).append("\"");
+    }
+    buf.append(" (").append(n.getChildCount()).append(" children)");
+    return buf.toString();
+  }
+
+
+  /**
+   * Starts watching the event thread.
+   */
+  public synchronized void start() {
+    if (watchdog != null) return;
+    running = true;
+    watchdog = new Thread("UHSReaderMonitor") {
+      public void run() {
+        while (running) {
+          watch();
+          try {Thread.sleep(HEARTBEAT_MILLIS);}
+          catch (InterruptedException e) {return;}
+        }
+      }
+    };
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+  /**
+   * Stops watching the event thread.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (watchdog != null) watchdog.interrupt();
+    watchdog = null;
+  }
+
+
+  /**
+   * Posts a heartbeat and waits for it, sampling the event thread's stack if it's late.
+   */
+  private void watch() {
+    final boolean[] beaten = new boolean[] {false};
+    final long postedNanos = System.nanoTime();
+    EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        eventThread = Thread.currentThread();
+        record(EVENT_QUEUE_DELAY, System.nanoTime() - postedNanos, null);
+        synchronized (beaten) {
+          beaten[0] = true;
+          beaten.notifyAll();
+        }
+      }
+    });
+
+    Stall stall = null;
+    synchronized (beaten) {
+      while (!beaten[0]) {
+        long waitMillis = stallMillis - (System.nanoTime() - postedNanos) / 1000000;
+        if (stall != null) waitMillis = stallMillis;
+        if (waitMillis > 0) {
+          try {beaten.wait(waitMillis);}
+          catch (InterruptedException e) {return;}
+          if (beaten[0]) break;
+        }
+
+        if (stall == null) {
+          stall = new Stall();
+          stall.startTime = System.currentTimeMillis() - (System.nanoTime() - postedNanos) / 1000000;
+          stall.activity = activity;
+          stall.fileName = fileName;
+        }
+        Thread tmpThread = eventThread;
+        if (tmpThread != null) stall.addSample(tmpThread.getStackTrace());
+      }
+    }
+    if (stall == null) return;
+
+    stall.millis = (System.nanoTime() - postedNanos) / 1000000;
+    if (stall.activity == null) stall.activity = activity;
+    synchronized (pronoun) {
+      stallCount++;
+      int i = 0;
+      while (i < stalls.size() && ((Stall)stalls.get(i)).millis >= stall.millis) i++;
+      if (i < MAX_STALLS) stalls.add(i, stall);
+      if (stalls.size() > MAX_STALLS) stalls.remove(stalls.size()-1);
+    }
+    if (errorHandler != null) {
+      errorHandler.log(UHSErrorHandler.INFO, pronoun, "Event thread stalled for "+ stall.millis +" ms"+ (stall.activity != null ? ", during "+ stall.activity : ""), 0, null);
+    }
+  }
+
+
+  /**
+   * Returns a summary of everything timed so far.
+   */
+  public synchronized String getReport() {
+    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    StringBuffer buf = new StringBuffer();
+    buf.append("Reader timings over ").append((System.currentTimeMillis() - startTime) / 1000).append(" s");
+    buf.append(", stall threshold ").append(stallMillis).append(" ms\n");
+
+    for (Iterator it=histograms.entrySet().iterator(); it.hasNext();) {
+      Map.Entry entry = (Map.Entry)it.next();
+      Histogram h = (Histogram)entry.getValue();
+      buf.append("\n").append(entry.getKey()).append(": ").append(h.count).append(" times");
+      buf.append(", mean ").append(formatMillis(h.totalNanos / h.count));
+      buf.append(", max ").append(formatMillis(h.maxNanos)).append("\n");
+
+      for (int i=0; i < BUCKET_COUNT; i++) {
+        if (h.buckets[i] == 0) continue;
+        buf.append("  ").append(getBucketName(i)).append(": ").append(h.buckets[i]).append("\n");
+      }
+      for (int i=0; i < h.slowestNanos.size(); i++) {
+        String tmpContext = (String)h.slowestContexts.get(i);
+        if (tmpContext == null) continue;
+        buf.append("  slow: ").append(formatMillis(((Long)h.slowestNanos.get(i)).longValue()));
+        buf.append(" ").append(tmpContext).append("\n");
+      }
+    }
+
+    buf.append("\nEvent thread stalls: ").append(stallCount);
+    if (stallCount > stalls.size()) buf.append(" (longest ").append(stalls.size()).append(" shown)");
+    buf.append("\n");
+    for (int i=0; i < stalls.size(); i++) {
+      Stall stall = (Stall)stalls.get(i);
+      buf.append("\n").append(stall.millis).append(" ms at ").append(timeFormat.format(new Date(stall.startTime)));
+      if (stall.fileName != null) buf.append(", in ").append(stall.fileName);
+      if (stall.activity != null) buf.append(", during ").append(stall.activity);
+      buf.append("\n");
+      for (int s=0; s < stall.samples.size(); s++) {
+        StackTraceElement[] trace = (StackTraceElement[])stall.samples.get(s);
+        int repeats = ((Integer)stall.sampleCounts.get(s)).intValue();
+        buf.append("  sample ").append(s+1);
+        if (repeats > 1) buf.append(" (seen ").append(repeats).append(" times in a row)");
+        buf.append(":\n");
+        for (int t=0; t < trace.length; t++) {
+          // Below the event's handler, it's the same dispatch code every time
+          if (t == MAX_STACK_DEPTH || trace[t].getClassName().equals("java.awt.EventQueue")) {
+            buf.append("    ...\n");
+            break;
+          }
+          buf.append("    at ").append(trace[t].toString()).append("\n");
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+
+  /**
+   * Returns the range of durations a bucket holds.
+   */
+  private static String getBucketName(int n) {
+    if (n == 0) return "<1 ms";
+    if (n == BUCKET_COUNT-1) return ">="+ (1L << (n-1)) +" ms";
+    return (1L << (n-1)) +"-"+ (1L << n) +" ms";
+  }
+
+  private static int getBucket(long nanos) {
+    long millis = nanos / 1000000;
+    int result = 0;
+    while (millis > 0 && result < BUCKET_COUNT-1) {
+      millis >>= 1;
+      result++;
+    }
+    return result;
+  }
+
+  private static String formatMillis(long nanos) {
+    long tenths = nanos / 100000;
+    return (tenths / 10) +"."+ (tenths % 10) +" ms";
+  }
+
+
+
+  /**
+   * Durations for one kind of event.
+   */
+  private static class Histogram {
+    public long[] buckets = new long[BUCKET_COUNT];
+    public long count = 0;
+    public long totalNanos = 0;
+    public long maxNanos = 0;
+    public ArrayList slowestNanos = new ArrayList();  // Longs, slowest first
+    public ArrayList slowestContexts = new ArrayList();
+
+    public void add(long nanos, String context) {
+      buckets[getBucket(nanos)]++;
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+
+      int i = 0;
+      while (i < slowestNanos.size() && ((Long)slowestNanos.get(i)).longValue() >= nanos) i++;
+      if (i >= MAX_SLOWEST) return;
+      slowestNanos.add(i, new Long(nanos));
+      slowestContexts.add(i, context);
+      if (slowestNanos.size() > MAX_SLOWEST) {
+        slowestNanos.remove(MAX_SLOWEST);
+        slowestContexts.remove(MAX_SLOWEST);
+      }
+    }
+  }
+
+
+
+  /**
+   * A time the event thread was unresponsive.
+   */
+  private static class Stall {
+    public long startTime = 0;
+    public long millis = 0;
+    public String fileName = null;
+    public String activity = null;
+    public ArrayList samples = new ArrayList();  // StackTraceElement arrays
+    public ArrayList sampleCounts = new ArrayList();  // Integers, how often each repeated
+
+    public void addSample(StackTraceElement[] trace) {
+      int last = samples.size()-1;
+      if (last >= 0 && Arrays.equals((StackTraceElement[])samples.get(last), trace)) {
+        sampleCounts.set(last, new Integer(((Integer)sampleCounts.get(last)).intValue()+1));
+      }
+      else if (samples.size() < MAX_STALL_SAMPLES) {
+        samples.add(trace);
+        sampleCounts.add(new Integer(1));
+      }
+    }
+  }
+}
@@ -53,7 +53,12 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
   public static int SCROLL_TO_BOTTOM = 1;
   public static int SCROLL_IF_INCOMPLETE = 2;
 
+  private static final int MAX_PREFETCH_NODES = 1000;
+  private static final int MAX_CACHED_PANELS = 32;
+  private static final long MAX_CACHED_PANEL_BYTES = 16L*1024*1024;
+
   private UHSErrorHandler errorHandler = null;
+  private UHSReaderMonitor monitor = null;
 
   private UHSReaderPanel pronoun = this;
   private String readerTitle = "";
@@ -62,6 +67,10 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
   private UHSNode currentNode = null;
 
   private NodePanel currentNodePanel = null;
+  private LinkedHashMap panelCache = new LinkedHashMap(16, 0.75f, true);  // Recently shown panels, eldest first
+  private long panelCacheBytes = 0;
+  private UHSTextPreparer textPreparer = new UHSTextPreparer();
+  private UHSImageService imageService = new UHSImageService();
   private JScrollPane scrollPane = null;
   private JScrollablePanel scrollView = new JScrollablePanel(new BorderLayout());
 
@@ -78,6 +87,7 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
   private JCheckBox showAllBox = null;
 
   private String hintsPath = ".";
+  private UHSProgressStore progressStore = null;
 
 
   public UHSReaderPanel() {
@@ -208,7 +218,7 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
       public void actionPerformed(ActionEvent e) {
         if(!showAllBox.isSelected()) return;
 
-        while (showNext() != false);
+        showNext(Integer.MAX_VALUE);
       }
     });
 
@@ -229,6 +239,19 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
    */
   public void setErrorHandler(UHSErrorHandler eh) {
     errorHandler = eh;
+    if (progressStore != null) progressStore.setErrorHandler(eh);
+    imageService.setErrorHandler(eh);
+  }
+
+
+  /**
+   * Sets a monitor to time navigation, file loading, and image decoding with.
+   *
+   * @param m the monitor, or null
+   */
+  public void setMonitor(UHSReaderMonitor m) {
+    monitor = m;
+    imageService.setMonitor(m);
   }
 
 
@@ -254,6 +277,25 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
   }
 
 
+  /**
+   * Set the dir in which to remember revealed hints.
+   * The dir will be created when a file is opened, if necessary.
+   *
+   * By default, progress is not remembered.
+   *
+   * @param s the path, or null to forget progress
+   */
+  public void setProgressPath(String s) {
+    if (progressStore != null) progressStore.close();
+    if (s == null) {
+      progressStore = null;
+    } else {
+      progressStore = new UHSProgressStore(s);
+        progressStore.setErrorHandler(errorHandler);
+    }
+  }
+
+
   /**
    * Clears everything.
    */
@@ -272,6 +314,10 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
 
     scrollView.removeAll();
     currentNodePanel = null;
+    panelCache.clear();
+    panelCacheBytes = 0;
+    textPreparer.clear();
+    imageService.clear();
 
     pronoun.setReaderTitle(null);
   }
@@ -284,6 +330,8 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
    */
   public void openFile(final String path) {
     ancestorSetNerfed(true);
+    final long startNanos = System.nanoTime();
+    if (monitor != null) monitor.setFileName((new File(path)).getName());
 
     if (errorHandler != null) {
       errorHandler.log(UHSErrorHandler.INFO, this, "Opened "+ (new File(path)).getName(), 0, null);
@@ -293,7 +341,11 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
       public void run() {
         OpenUHSLib UHSLib = new OpenUHSLib();
           UHSLib.setErrorHandler(errorHandler);
+          UHSLib.setReadAheadEnabled(true);
         final UHSRootNode rootNode = UHSLib.parseFile(path, UHSLib.AUX_NEST);
+        if (rootNode != null && progressStore != null) {
+          progressStore.open(path, rootNode);
+        }
         if (rootNode == null) {
           JOptionPane.showMessageDialog(pronoun, "Unreadable file or parsing error", "OpenUHS Cannot Continue", JOptionPane.ERROR_MESSAGE);
         }
@@ -301,8 +353,11 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
           // Back to the event thread...
           Runnable r = new Runnable() {
             public void run() {
+              if (monitor != null) monitor.begin(UHSReaderMonitor.OPEN_FILE, null);
               setUHSNodes(rootNode, rootNode);
               ancestorSetNerfed(false);
+              // Count from the request, parsing included, not just the time on the event thread
+              if (monitor != null) monitor.end(UHSReaderMonitor.OPEN_FILE, UHSReaderMonitor.describeNode(rootNode), startNanos);
             }
           };
           EventQueue.invokeLater(r);
@@ -337,6 +392,8 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
    */
   public void setReaderNode(UHSNode newNode) {
     if (newNode == null) {return;}
+    String monitorContext = (monitor != null ? UHSReaderMonitor.describeNode(newNode) : null);
+    long monitorNanos = (monitor != null ? monitor.begin(UHSReaderMonitor.SET_READER_NODE, monitorContext) : 0);
 
     int matchesNextPrev = 0; //-1 prev, 1 next, 0 neither
 
@@ -389,18 +446,122 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
       else questionLabel.setText("");
       showAll = showAllBox.isSelected();
     }
+    if (currentNodePanel != null) {
+      cachePanel(currentNodePanel, scrollPane.getViewport().getViewPosition());
+    }
     scrollView.removeAll();
-    currentNodePanel = new NodePanel(currentNode, pronoun, showAll);
+
+    // Revisited nodes get their old panel back, as it was left
+    CachedPanel cached = (CachedPanel)panelCache.remove(currentNode);
+    if (cached != null) {
+      panelCacheBytes -= cached.bytes;
+      currentNodePanel = cached.panel;
+      if (showAll) currentNodePanel.showNext(Integer.MAX_VALUE);
+    } else {
+      long panelNanos = (monitor != null ? monitor.begin(UHSReaderMonitor.PANEL_CONSTRUCTION, monitorContext) : 0);
+      currentNodePanel = new NodePanel(currentNode, pronoun, showAll, textPreparer, imageService);
+      if (monitor != null) monitor.end(UHSReaderMonitor.PANEL_CONSTRUCTION, monitorContext, panelNanos);
+    }
     scrollView.add(currentNodePanel);
 
-    scrollTo(SCROLL_IF_INCOMPLETE);
+    if (cached != null) {
+      // Scroll before validating, so rows are laid out where they'll be seen
+      final Point viewPosition = cached.viewPosition;
+      scrollPane.getViewport().setViewPosition(viewPosition);
+      SwingUtilities.invokeLater(new Runnable() {public void run() {scrollPane.getViewport().setViewPosition(viewPosition);}});
+    } else {
+      scrollTo(SCROLL_IF_INCOMPLETE);
+    }
 
     boolean complete = currentNodePanel.isComplete();
     showLabel.setText("Hint "+ (complete?currentNodePanel.getNode().getChildCount():currentNodePanel.getNode().getRevealedAmount()) +"/"+ currentNodePanel.getNode().getChildCount());
     showNextBtn.setEnabled(!complete);
 
+    prefetchFrom(currentNode);
+
     pronoun.validate();
     pronoun.repaint();
+
+    if (monitor != null) monitor.end(UHSReaderMonitor.SET_READER_NODE, monitorContext, monitorNanos);
+  }
+
+
+  /**
+   * Keeps a panel for reuse.
+   * <br />The least recently shown panels are dropped when there are
+   * too many, or their estimated memory is too much.
+   *
+   * @param panel a panel that's being replaced
+   * @param viewPosition the panel's scroll position
+   */
+  private void cachePanel(NodePanel panel, Point viewPosition) {
+    CachedPanel cached = new CachedPanel();
+    cached.panel = panel;
+    cached.viewPosition = viewPosition;
+    cached.bytes = panel.getMemoryEstimate();
+    if (cached.bytes > MAX_CACHED_PANEL_BYTES) return;
+
+    CachedPanel old = (CachedPanel)panelCache.put(panel.getNode(), cached);
+    if (old != null) panelCacheBytes -= old.bytes;
+    panelCacheBytes += cached.bytes;
+
+    Iterator it = panelCache.values().iterator();
+    while ((panelCacheBytes > MAX_CACHED_PANEL_BYTES || panelCache.size() > MAX_CACHED_PANELS) && it.hasNext()) {
+      CachedPanel eldest = (CachedPanel)it.next();
+      if (eldest == cached) break;
+      panelCacheBytes -= eldest.bytes;
+      it.remove();
+    }
+  }
+
+
+  /**
+   * Queues what's likely to be shown next, to be prepared in the background.
+   * <br />That's the node's own images (e.g., hotspot overlays), and
+   * whatever each clickable child (a group or link) would show. Anything
+   * queued for the previous node is abandoned.
+   *
+   * @param n the node being shown
+   */
+  private void prefetchFrom(UHSNode n) {
+    textPreparer.cancelPrefetch();
+    imageService.cancelPrefetch();
+
+    for (int i=0; i < n.getChildCount(); i++) {
+      imageService.prefetchImage(n.getChild(i));
+    }
+
+    int budget = MAX_PREFETCH_NODES;
+    for (int i=0; i < n.getChildCount() && budget > 0; i++) {
+      UHSNode tmpNode = n.getChild(i);
+      UHSNode targetNode = null;
+      if (tmpNode.isLink() && rootNode != null) targetNode = rootNode.getLinkTarget(tmpNode.getLinkTarget());
+      else if (tmpNode.isGroup()) targetNode = tmpNode;
+      if (targetNode == null) continue;
+
+      if (!targetNode.isGroup()) {
+        // A lone hint is shown by itself
+        prefetchNode(targetNode, true);
+        budget--;
+        continue;
+      }
+      // Hotspot text is drawn as zones, not text areas
+      boolean text = !(targetNode instanceof UHSHotSpotNode);
+      for (int j=0; j < targetNode.getChildCount() && budget > 0; j++) {
+        UHSNode tmpChild = targetNode.getChild(j);
+        prefetchNode(tmpChild, text);
+        budget--;
+        // A hotspot's main image is another click away, but slow to decode
+        if (tmpChild instanceof UHSHotSpotNode && tmpChild.getChildCount() > 0) {
+          imageService.prefetchImage(tmpChild.getChild(0));
+        }
+      }
+    }
+  }
+
+  private void prefetchNode(UHSNode n, boolean text) {
+    if (n.getContentType() == UHSNode.IMAGE) imageService.prefetchImage(n);
+    else if (text && n.getContentType() == UHSNode.STRING) textPreparer.prefetch(n);
   }
 
 
@@ -442,61 +603,91 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
 
 
   /**
-   * Recursively searches for a phrase within children of a node.
+   * Searches for a phrase within children of a node.
    * <br />
-   * <br />This'll go into an infinite loop if two nodes have each other as children.
-   * <br />Luckily real UHS files aren't structured that way.
+   * <br />Each node with a matching child is listed once, titled with its
+   * ancestry. Titles are only built for nodes that are listed.
    * Link targets don't count as children.
+   * <br />The walk is shared among available processors, and results
+   * are listed in the same order as a single-threaded walk.
    *
    * @param resultsNode an existing temporary node to add results to
    * @param prefix phrase to prepend to result titles (use "")
-   * @param depth recursion level reminder (use 0)
+   * @param depth nesting level of currentNode (use 0)
    * @param input the phrase to search for
    */
   public void searchNode(UHSNode resultsNode, String prefix, int depth, UHSNode currentNode, String input) {
     if (input == null || input.length() == 0) return;
     //assuming input is lower case because toLowering it here would be wasteful
 
-    if (currentNode.getContentType() == UHSNode.STRING) {
-      prefix = (depth>1?prefix+" : ":"") + currentNode.getContent();
-    }
-    else {
-      prefix = (depth>1?prefix+" : ":"") + "???";
-    }
-
-    depth++;
-    UHSNode tmpNode = null;
-    UHSNode newNode = null;
-    boolean beenListed = false;
-    for (int i=0; i<currentNode.getChildCount(); i++) {
-      tmpNode = ((UHSNode)currentNode.getChild(i));
-      if (tmpNode.getContentType() == UHSNode.STRING && beenListed == false) {
-        if (((String)tmpNode.getContent()).toLowerCase().indexOf(input) != -1) {
-          newNode = new UHSNode("result");
-          newNode.setContent(prefix, UHSNode.STRING);
-          newNode.setChildren(currentNode.getChildren());
-          resultsNode.addChild(newNode);
-          beenListed = true;
-        }
+    SearchWork work = new SearchWork(currentNode, input, prefix, depth, Runtime.getRuntime().availableProcessors());
+    work.run();
+
+    // A parent whose children were split among parts may have been found by several
+    IdentityHashMap listedParents = new IdentityHashMap();
+    ArrayList parts = work.getParts();
+    for (int i=0; i < parts.size(); i++) {
+      SearchPart part = (SearchPart)parts.get(i);
+      for (int j=0; j < part.parents.size(); j++) {
+        UHSNode parentNode = (UHSNode)part.parents.get(j);
+        if (listedParents.put(parentNode, parentNode) != null) continue;
+
+        UHSNode newNode = new UHSNode("result");
+        newNode.setContent(part.titles.get(j), UHSNode.STRING);
+        newNode.setChildren(parentNode.getChildren());
+        resultsNode.addChild(newNode);
       }
-      searchNode(resultsNode, prefix, depth, currentNode.getChild(i), input);
     }
   }
 
 
+  /**
+   * Builds a search result's title from its ancestry.
+   * <br />Levels below the first are joined with " : ".
+   *
+   * @param path nodes from the search's starting node downward
+   * @param count the number of nodes in path to use
+   * @param prefix phrase to prepend to result titles
+   * @param depth nesting level of the first node in path
+   */
+  private static String getSearchTitle(UHSNode[] path, int count, String prefix, int depth) {
+    StringBuffer buf = new StringBuffer(prefix);
+    for (int i=0; i < count; i++) {
+      if (depth+i > 1) buf.append(" : ");
+      else buf.setLength(0);
+
+      if (path[i].getContentType() == UHSNode.STRING) buf.append(path[i].getContent());
+      else buf.append("???");
+    }
+    return buf.toString();
+  }
+
+
   /**
    * Reveals the next hint of the current node panel.
    *
    * @return true if successful, false otherwise
    */
   public boolean showNext() {
+    return showNext(1);
+  }
+
+  /**
+   * Reveals several hints of the current node panel at once.
+   * <br />Progress is saved, and the hint count updated, just once.
+   *
+   * @param count the most hints to reveal
+   * @return true if any were revealed, false otherwise
+   */
+  public boolean showNext(int count) {
     if (currentNodePanel == null) return false;
 
-    int revealedIndex = currentNodePanel.showNext();
+    int revealedIndex = currentNodePanel.showNext(count);
     if (revealedIndex == -1) {
       showNextBtn.setEnabled(false);
       return false;
     } else {
+      if (progressStore != null) progressStore.record(currentNodePanel.getNode());
       int lastHint = currentNodePanel.getNode().getChildCount();
       if ((revealedIndex+1) == lastHint) showNextBtn.setEnabled(false);
       showLabel.setText("Hint "+ (revealedIndex+1) +"/"+ lastHint);
@@ -591,4 +782,168 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl {
 
     if (nerfable) ((Nerfable)ancestor).setNerfed(b);
   }
+
+
+
+  /**
+   * A panel that was shown, and where it was scrolled to.
+   */
+  private static class CachedPanel {
+    public NodePanel panel = null;
+    public Point viewPosition = null;
+    public long bytes = 0;
+  }
+
+
+  /**
+   * A search, shared among threads.
+   * <br />Each part is a stretch of the pre-order walk, and parts are kept
+   * in walk order. While a thread is waiting for work, busy threads split
+   * their parts, handing over the subtrees they would have visited last.
+   */
+  private static class SearchWork {
+    private String input = null;
+    private String prefix = null;
+    private int depth = 0;
+    private int threadCount = 1;
+
+    private ArrayList parts = new ArrayList();      // SearchParts, in walk order
+    private LinkedList pending = new LinkedList();  // SearchParts not yet taken
+    private int idleCount = 0;
+    private volatile boolean hungry = false;        // Whether a thread is waiting for a part
+
+
+    public SearchWork(UHSNode startNode, String input, String prefix, int depth, int threadCount) {
+      this.input = input;
+      this.prefix = prefix;
+      this.depth = depth;
+      this.threadCount = Math.max(1, threadCount);
+
+      SearchPart firstPart = new SearchPart(new UHSNodeIterator(startNode, UHSNodeIterator.PREORDER));
+      parts.add(firstPart);
+      pending.add(firstPart);
+    }
+
+
+    /**
+     * Searches on this thread and others, until every part is done.
+     */
+    public void run() {
+      Thread[] threads = new Thread[threadCount-1];
+      for (int i=0; i < threads.length; i++) {
+        threads[i] = new Thread("UHSSearch") {
+          public void run() {work();}
+        };
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+      work();
+
+      for (int i=0; i < threads.length; i++) {
+        while (threads[i].isAlive()) {
+          try {threads[i].join();}
+          catch (InterruptedException e) {}
+        }
+      }
+    }
+
+
+    /**
+     * Returns all parts, in walk order.
+     */
+    public ArrayList getParts() {
+      return parts;
+    }
+
+
+    private void work() {
+      SearchPart part;
+      while ((part = takePart()) != null) {
+        searchPart(part);
+      }
+    }
+
+
+    /**
+     * Waits for a part to search.
+     *
+     * @return a part, or null if every thread is idle
+     */
+    private synchronized SearchPart takePart() {
+      idleCount++;
+      while (pending.isEmpty() && idleCount < threadCount) {
+        hungry = true;
+        try {wait();}
+        catch (InterruptedException e) {}
+      }
+      if (pending.isEmpty()) {
+        hungry = false;
+        notifyAll();
+        return null;
+      }
+      idleCount--;
+      SearchPart result = (SearchPart)pending.removeFirst();
+      hungry = (idleCount > 0 && pending.isEmpty());
+      return result;
+    }
+
+
+    /**
+     * Queues a part split off from another, just after it in walk order.
+     */
+    private synchronized void addPart(SearchPart fromPart, SearchPart newPart) {
+      parts.add(parts.indexOf(fromPart)+1, newPart);
+      pending.add(newPart);
+      hungry = false;
+      notifyAll();
+    }
+
+
+    private void searchPart(SearchPart part) {
+      UHSNodeIterator it = part.it;
+      boolean[] listed = new boolean[16];  //Whether the most recent node at each depth has been added to results
+
+      while (it.hasNext()) {
+        UHSNode tmpNode = it.nextNode();
+        int tmpDepth = it.getDepth();
+
+        if (tmpDepth == listed.length) {
+          boolean[] newListed = new boolean[listed.length*2];
+          System.arraycopy(listed, 0, newListed, 0, listed.length);
+          listed = newListed;
+        }
+        listed[tmpDepth] = false;
+
+        if (hungry) {
+          UHSNodeIterator splitIt = it.split();
+          if (splitIt != null) addPart(part, new SearchPart(splitIt));
+        }
+
+        if (tmpDepth == 0 || listed[tmpDepth-1]) continue;
+        if (tmpNode.getContentType() == UHSNode.STRING) {
+          if (((String)tmpNode.getContent()).toLowerCase().indexOf(input) != -1) {
+            UHSNode[] path = it.getPath();
+            part.parents.add(it.getParent());
+            part.titles.add(getSearchTitle(path, path.length-1, prefix, depth));
+            listed[tmpDepth-1] = true;
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * A stretch of a search's walk, and what it found.
+   */
+  private static class SearchPart {
+    public UHSNodeIterator it = null;
+    public ArrayList parents = new ArrayList();  // Nodes with a matching child
+    public ArrayList titles = new ArrayList();   // Their result titles
+
+
+    public SearchPart(UHSNodeIterator it) {
+      this.it = it;
+    }
+  }
 }
@@ -22,7 +22,10 @@
 package org.openuhs.reader;
 
 import java.awt.*;
+import java.awt.font.*;
+import java.text.*;
 import javax.swing.*;
+import javax.swing.event.*;
 import javax.swing.text.*;
 import java.util.*;
 
@@ -30,23 +33,52 @@ import org.openuhs.core.*;
 
 
 /**
- * A JTextPane that understands UHS markup.
+ * A read-only component that draws text with UHS markup.
+ * <br />The markup is resolved into styled runs once, then each
+ * paragraph is broken into lines with a LineBreakMeasurer. Lines are
+ * kept until the width or fonts change, and on a resize only
+ * paragraphs that wrapped before, or would now, are broken again.
+ * <br />Long text is laid out on a background thread. Until that's
+ * done, the previous layout (if any) is drawn, and the preferred size
+ * is an estimate.
+ * <br />
+ * <br />Fonts and colors come from a StyleContext, so changing its
+ * styles (e.g., the text size) still affects existing text areas.
+ * Displayed ones are laid out again at once.
  */
-public class UHSTextArea extends JTextPane {
+public class UHSTextArea extends JComponent {
   public static Color GROUP_COLOR = Color.BLUE;
   public static Color LINK_COLOR = Color.GREEN.darker().darker();
   public static Color HYPER_COLOR = Color.MAGENTA.darker().darker();
   public static final StyleContext DEFAULT_STYLES = UHSTextArea.getDefaultStyleContext();
 
+  private static final int MARGIN = 3;
+  private static final FontRenderContext FRC = new FontRenderContext(null, true, true);
+
+  /** Text at least this long is laid out on a background thread */
+  public static final int ASYNC_LAYOUT_LENGTH = 16384;
+
+  private static final LinkedList layoutQueue = new LinkedList();
+  private static Thread layoutWorker = null;
+
   private UHSTextArea pronoun = this;
 
   private UHSNode node = null;
-  private StyledDocument doc = null;
+  private StyleContext styleContext = null;
+  private UHSTextRuns runs = null;  // null while being prepared elsewhere
 
-  private String[] styles = {"regular","monospaced","hyper"};
-  private char[][] prefixes = {{'#','p','+'}, {'#','p','-'}, {'#','h','+'}};
-  private char[][] suffixes = {         null,          null, {'#','h','-'}};
-  private int prefixLen = 3;
+  // Line layout, rebuilt when fonts change and rebroken when the width does
+  private Layout layout = null;
+  private LayoutRequest layoutRequest = null;  // Pending on the layout thread
+  private int estimatedLineCount = 0;
+
+  private ChangeListener styleListener = new ChangeListener() {
+    public void stateChanged(ChangeEvent e) {
+      // The next layout will see the font changed
+      pronoun.revalidate();
+      pronoun.repaint();
+    }
+  };
 
 
   /**
@@ -63,85 +95,461 @@ public class UHSTextArea extends JTextPane {
    * @param styleContext a collection of font styles to use.
    */
   public UHSTextArea(UHSNode n, StyleContext styleContext) {
+    this(n, UHSTextRuns.parse(n), styleContext);
+  }
+
+  /**
+   * Constructs a text area with the class-default style context, and runs prepared elsewhere.
+   *
+   * @param n the UHSNode to display.
+   * @param r the node's runs, or null to show nothing until setRuns()
+   * @see UHSTextPreparer
+   */
+  public UHSTextArea(UHSNode n, UHSTextRuns r) {
+    this(n, r, DEFAULT_STYLES);
+  }
+
+  /**
+   * Constructs a text area, with runs prepared elsewhere.
+   *
+   * @param n the UHSNode to display.
+   * @param r the node's runs, or null to show nothing until setRuns()
+   * @param styleContext a collection of font styles to use.
+   */
+  public UHSTextArea(UHSNode n, UHSTextRuns r, StyleContext styleContext) {
     super();
     node = n;
+    this.styleContext = styleContext;
+
+    // Like a JTextPane, anything the styles leave unset comes from the LAF
+    Color bg = UIManager.getColor("TextPane.background");
+    pronoun.setBackground((bg != null ? bg : Color.WHITE));
+    Color fg = UIManager.getColor("TextPane.foreground");
+    pronoun.setForeground((fg != null ? fg : Color.BLACK));
+    Font font = UIManager.getFont("TextPane.font");
+    pronoun.setFont((font != null ? font : new Font("Dialog", Font.PLAIN, 12)));
+    pronoun.setOpaque(true);
+    setRuns(r);
+  }
 
-    doc = new DefaultStyledDocument(styleContext);
-    pronoun.setStyledDocument(doc);
+
+  /**
+   * Gets the node this text area displays.
+   */
+  public UHSNode getNode() {
+    return node;
+  }
+
+  /**
+   * Displays a different node, so the text area can be reused.
+   */
+  public void setNode(UHSNode n) {
+    node = n;
     updateContent();
   }
 
+  /**
+   * Displays a different node, with runs prepared elsewhere.
+   *
+   * @param n the UHSNode to display.
+   * @param r the node's runs, or null to show nothing until setRuns()
+   */
+  public void setNode(UHSNode n, UHSTextRuns r) {
+    node = n;
+    setRuns(r);
+  }
+
 
   /**
-   * Inserts the node's styled text into the document based on markup.
+   * Resolves the node's markup into styled runs.
    */
   public void updateContent() {
-    try {doc.remove(0, doc.getLength());}
-    catch (BadLocationException e) {}
-    if (node.getContentType() != UHSNode.STRING) return;
-
-    if (node.isGroup()) styles[0] = "group";
-    else if (node.isLink()) styles[0] = "link";
-    else styles[0] = "regular";
-
-    char[] tmpContent = ((String)node.getContent()).toCharArray();
-    Stack history = new Stack();
-    boolean reverted = false;
-    int lastPos = 0;
-    int lastStyle = 0;
-    int newStyle = -1;
-    char[] tmpChunk = null;
-    String tmpString = null;
-    try {
-      for (int i=0; i < tmpContent.length; i++) {
-        reverted = false;
-        try {lastStyle = ((Integer)history.peek()).intValue();}
-        catch (EmptyStackException e) {lastStyle = 0;}
-
-        if (i+prefixLen-1 < tmpContent.length) {
-          tmpChunk = new char[] {tmpContent[i],tmpContent[i+1],tmpContent[i+2]};
-          newStyle = -1;
-          for (int j=0; j < prefixes.length; j++) {
-            if (Arrays.equals(prefixes[j], tmpChunk)) {newStyle = j; break;}
-          }
-          if (newStyle == -1) {
-            for (int j=0; j < suffixes.length; j++) {
-              if (suffixes[j] == null) continue;
-              if (Arrays.equals(suffixes[j], tmpChunk)) {
-                try {
-                  history.remove(new Integer(j));
-                  // Don't update lastValue here
-                  // Let the old lastValue make it to the next if
-                  newStyle = ((Integer)history.peek()).intValue();
-                } catch (EmptyStackException e) {newStyle = 0;}
-                reverted = true;
-                break;
-              }
+    setRuns(UHSTextRuns.parse(node));
+  }
+
+
+  /**
+   * Sets the styled runs to draw, which should belong to the current node.
+   *
+   * @param r the runs, or null to show nothing for now
+   */
+  public void setRuns(UHSTextRuns r) {
+    cancelLayout();
+    runs = r;
+    layout = null;
+
+    estimatedLineCount = 1;
+    String text = getText();
+    for (int i=text.indexOf('\n'); i != -1; i=text.indexOf('\n', i+1)) estimatedLineCount++;
+
+    pronoun.revalidate();
+    pronoun.repaint();
+  }
+
+  /**
+   * Returns the styled runs being drawn.
+   *
+   * @return the runs, or null if they're not ready yet
+   */
+  public UHSTextRuns getRuns() {
+    return runs;
+  }
+
+
+  /**
+   * Returns the displayed text, without markup.
+   */
+  public String getText() {
+    return (runs != null ? runs.getText() : "");
+  }
+
+
+  public void addNotify() {
+    super.addNotify();
+    // Styles only fire for their own changes, so listen to every one "regular" inherits from
+    for (AttributeSet s=styleContext.getStyle("regular"); s instanceof Style; s=s.getResolveParent()) {
+      ((Style)s).addChangeListener(styleListener);
+    }
+  }
+
+  public void removeNotify() {
+    for (AttributeSet s=styleContext.getStyle("regular"); s instanceof Style; s=s.getResolveParent()) {
+      ((Style)s).removeChangeListener(styleListener);
+    }
+    super.removeNotify();
+  }
+
+
+  public Dimension getPreferredSize() {
+    if (isPreferredSizeSet()) return super.getPreferredSize();
+
+    Insets insets = pronoun.getInsets();
+    int extraWidth = insets.left + insets.right + MARGIN*2;
+    int extraHeight = insets.top + insets.bottom + MARGIN*2;
+    Font regularFont = ensureLayout(pronoun.getWidth() - extraWidth);
+    if (layout == null) {
+      // Guess a line per paragraph until the real layout is ready
+      float lineHeight = (float)Math.ceil(regularFont.getLineMetrics(" ", FRC).getHeight());
+      return new Dimension(extraWidth, (int)Math.ceil(lineHeight * estimatedLineCount) + extraHeight);
+    }
+    return new Dimension((int)Math.ceil(layout.advance) + extraWidth, (int)Math.ceil(layout.height) + extraHeight);
+  }
+
+
+  protected void paintComponent(Graphics g) {
+    if (pronoun.isOpaque()) {
+      g.setColor(pronoun.getBackground());
+      g.fillRect(0, 0, pronoun.getWidth(), pronoun.getHeight());
+    }
+
+    Insets insets = pronoun.getInsets();
+    ensureLayout(pronoun.getWidth() - insets.left - insets.right - MARGIN*2);
+    if (layout == null) return;
+
+    Graphics2D g2 = (Graphics2D)g.create();
+    g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+    g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+
+    Rectangle clip = g2.getClipBounds();
+    if (clip == null) clip = new Rectangle(0, 0, pronoun.getWidth(), pronoun.getHeight());
+    float x = insets.left + MARGIN;
+    float y = insets.top + MARGIN;
+    ArrayList paragraphs = layout.paragraphs;
+    for (int i=0; i < paragraphs.size() && y < clip.y+clip.height; i++) {
+      Paragraph p = (Paragraph)paragraphs.get(i);
+      if (p.lines == null) {
+        y += p.emptyHeight;
+        continue;
+      }
+      for (int j=0; j < p.lines.size(); j++) {
+        TextLayout line = (TextLayout)p.lines.get(j);
+        float lineHeight = getLineHeight(line);
+        if (y + lineHeight >= clip.y && y <= clip.y+clip.height) {
+          line.draw(g2, x, y + line.getAscent());
+        }
+        y += lineHeight;
+      }
+    }
+    g2.dispose();
+  }
+
+
+  /**
+   * Brings the line layout up to date, or arranges for it to be.
+   *
+   * @param width the width to wrap at, or less than 1 to not wrap
+   * @return the current regular font
+   */
+  private Font ensureLayout(int width) {
+    if (width < 1) width = 0;
+
+    Font regularFont = getStyleFont(styleContext.getStyle("regular"));
+    if (layout != null && layout.width == width && regularFont.equals(layout.font)) return regularFont;
+    if (layoutRequest != null) {
+      if (layoutRequest.width == width && regularFont.equals(layoutRequest.font)) return regularFont;
+      cancelLayout();
+    }
+
+    LayoutRequest req = new LayoutRequest();
+    req.area = pronoun;
+    req.runs = runs;
+    req.font = regularFont;
+    req.width = width;
+    if (layout != null && regularFont.equals(layout.font)) {
+      req.paragraphs = layout.paragraphs;
+    } else {
+      req.emptyHeight = (float)Math.ceil(regularFont.getLineMetrics(" ", FRC).getHeight());
+      req.styleAttribs = new HashMap();
+      for (int i=0; runs != null && i < runs.getRunCount(); i++) {
+        String styleName = runs.getRunStyle(i);
+        if (!req.styleAttribs.containsKey(styleName)) req.styleAttribs.put(styleName, getStyleAttributes(styleName));
+      }
+    }
+
+    if (getText().length() < ASYNC_LAYOUT_LENGTH) {
+      layout = req.perform();
+    }
+    else {
+      layoutRequest = req;
+      synchronized (layoutQueue) {
+        layoutQueue.add(req);
+        startLayoutWorker();
+      }
+    }
+    return regularFont;
+  }
+
+
+  /**
+   * Abandons any pending background layout.
+   */
+  private void cancelLayout() {
+    if (layoutRequest == null) return;
+    layoutRequest.cancelled = true;
+    synchronized (layoutQueue) {
+      layoutQueue.remove(layoutRequest);
+    }
+    layoutRequest = null;
+  }
+
+
+  /**
+   * Adopts a layout from the background thread, unless it's been superseded.
+   */
+  private void installLayout(LayoutRequest req, Layout result) {
+    if (req != layoutRequest) return;
+    layoutRequest = null;
+    layout = result;
+
+    pronoun.revalidate();
+    pronoun.repaint();
+  }
+
+
+  /**
+   * Splits text into paragraphs and applies each run's style.
+   *
+   * @param styleAttribs TextAttributes for each style the runs use
+   * @param emptyHeight the height of blank paragraphs
+   */
+  private static ArrayList buildParagraphs(UHSTextRuns runs, Map styleAttribs, float emptyHeight) {
+    String text = (runs != null ? runs.getText() : "");
+    int runCount = (runs != null ? runs.getRunCount() : 0);
+    ArrayList result = new ArrayList();
+    int start = 0;
+    int run = 0;
+    while (start <= text.length()) {
+      int end = text.indexOf('\n', start);
+      if (end == -1) end = text.length();
+
+      Paragraph p = new Paragraph();
+      p.emptyHeight = emptyHeight;
+      if (end > start) {
+        p.text = new AttributedString(text.substring(start, end));
+        while (run < runCount && runs.getRunEnd(run) <= start) run++;
+        for (int r=run; r < runCount && runs.getRunStart(r) < end; r++) {
+          int runStart = Math.max(runs.getRunStart(r), start);
+          int runEnd = Math.min(runs.getRunEnd(r), end);
+          if (runEnd > runStart) p.text.addAttributes((Map)styleAttribs.get(runs.getRunStyle(r)), runStart-start, runEnd-start);
+        }
+      }
+      result.add(p);
+      start = end+1;
+    }
+    return result;
+  }
+
+
+  /**
+   * Returns TextAttributes equivalent to a named style.
+   */
+  private Map getStyleAttributes(String styleName) {
+    Style style = styleContext.getStyle(styleName);
+    Map result = new HashMap();
+    Color fg = (Color)style.getAttribute(StyleConstants.Foreground);
+    result.put(TextAttribute.FONT, getStyleFont(style));
+    result.put(TextAttribute.FOREGROUND, (fg != null ? fg : pronoun.getForeground()));
+    if (StyleConstants.isUnderline(style)) result.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON);
+    return result;
+  }
+
+
+  /**
+   * Returns a style's font, falling back to this component's font for unset attributes.
+   */
+  private Font getStyleFont(Style style) {
+    Font font = pronoun.getFont();
+    String family = (String)style.getAttribute(StyleConstants.FontFamily);
+    Integer size = (Integer)style.getAttribute(StyleConstants.FontSize);
+    Boolean bold = (Boolean)style.getAttribute(StyleConstants.Bold);
+    Boolean italic = (Boolean)style.getAttribute(StyleConstants.Italic);
+
+    int fontStyle = Font.PLAIN;
+    if ((bold != null ? bold.booleanValue() : font.isBold())) fontStyle |= Font.BOLD;
+    if ((italic != null ? italic.booleanValue() : font.isItalic())) fontStyle |= Font.ITALIC;
+    return styleContext.getFont((family != null ? family : font.getFamily()), fontStyle, (size != null ? size.intValue() : font.getSize()));
+  }
+
+
+  private static void breakLines(Paragraph p, float wrapWidth) {
+    AttributedCharacterIterator it = p.text.getIterator();
+    LineBreakMeasurer measurer = new LineBreakMeasurer(it, FRC);
+    p.lines = new ArrayList(1);
+    while (measurer.getPosition() < it.getEndIndex()) {
+      p.lines.add(measurer.nextLayout(wrapWidth));
+    }
+    p.singleAdvance = (p.lines.size() == 1 ? ((TextLayout)p.lines.get(0)).getVisibleAdvance() : Float.MAX_VALUE);
+  }
+
+
+
+  /**
+   * Returns a line's height, rounded up to whole pixels as a JTextPane would.
+   */
+  private static float getLineHeight(TextLayout line) {
+    return (float)Math.ceil(line.getAscent() + line.getDescent() + line.getLeading());
+  }
+
+
+
+  /**
+   * Starts the background layout thread, if it isn't already running.
+   * <br />Call this while holding the queue's lock.
+   */
+  private static void startLayoutWorker() {
+    if (layoutWorker != null) {
+      layoutQueue.notifyAll();
+      return;
+    }
+    layoutWorker = new Thread("UHSTextArea layout") {
+      public void run() {
+        while (true) {
+          final LayoutRequest req;
+          synchronized (layoutQueue) {
+            while (layoutQueue.size() == 0) {
+              try {layoutQueue.wait();}
+              catch (InterruptedException e) {return;}
             }
+            req = (LayoutRequest)layoutQueue.removeFirst();
           }
-          if (newStyle != -1) {
-            if (i > 0) {
-              tmpString = new String(tmpContent, lastPos, i-lastPos);
-              doc.insertString(doc.getLength(), tmpString, doc.getStyle(styles[lastStyle]));
+          final Layout result = req.perform();
+          if (result == null) continue;
+
+          EventQueue.invokeLater(new Runnable() {
+            public void run() {
+              req.area.installLayout(req, result);
             }
-            lastPos = i+prefixLen;
-            if (!reverted) history.push(new Integer(newStyle));
-          }
+          });
         }
-        if (i == tmpContent.length-1 && lastPos <= i) {
-          try {lastStyle = ((Integer)history.peek()).intValue();}
-          catch (EmptyStackException e) {lastStyle = 0;}
+      }
+    };
+    layoutWorker.setDaemon(true);
+    layoutWorker.setPriority(Thread.NORM_PRIORITY-1);
+    layoutWorker.start();
+  }
 
-          tmpString = new String(tmpContent, lastPos, tmpContent.length-lastPos);
-          doc.insertString(doc.getLength(), tmpString, doc.getStyle(styles[lastStyle]));
+
+
+  /**
+   * Everything needed to lay out text, gathered on the event thread.
+   * <br />perform() doesn't touch the component, so it can run anywhere.
+   */
+  private static class LayoutRequest {
+    public UHSTextArea area = null;
+    public UHSTextRuns runs = null;
+    public Font font = null;
+    public int width = 0;
+    public ArrayList paragraphs = null;  // Reusable paragraphs, or null to build them
+    public Map styleAttribs = null;
+    public float emptyHeight = 0;
+    public volatile boolean cancelled = false;
+
+    /**
+     * Breaks the paragraphs into lines.
+     * <br />A paragraph that fit on one line, and still does, keeps its layout.
+     *
+     * @return a new layout, or null if cancelled
+     */
+    public Layout perform() {
+      ArrayList source = paragraphs;
+      if (source == null) source = buildParagraphs(runs, styleAttribs, emptyHeight);
+
+      Layout result = new Layout();
+      result.font = font;
+      result.width = width;
+      result.paragraphs = new ArrayList(source.size());
+      float wrapWidth = (width > 0 ? width : Float.MAX_VALUE);
+      for (int i=0; i < source.size(); i++) {
+        if (cancelled) return null;
+        Paragraph old = (Paragraph)source.get(i);
+        Paragraph p = new Paragraph();
+        p.text = old.text;
+        p.emptyHeight = old.emptyHeight;
+        result.paragraphs.add(p);
+
+        if (p.text == null) {
+          result.height += p.emptyHeight;
+          continue;
+        }
+        if (old.lines != null && old.lines.size() == 1 && old.singleAdvance <= wrapWidth) {
+          p.lines = old.lines;
+          p.singleAdvance = old.singleAdvance;
+        } else {
+          breakLines(p, wrapWidth);
+        }
+        for (int j=0; j < p.lines.size(); j++) {
+          TextLayout line = (TextLayout)p.lines.get(j);
+          result.height += getLineHeight(line);
+          result.advance = Math.max(result.advance, line.getVisibleAdvance());
         }
       }
+      return result;
     }
-    catch (BadLocationException e) {e.printStackTrace();}
-    catch (IndexOutOfBoundsException e) {e.printStackTrace();}
+  }
 
-    pronoun.validate();
-    pronoun.repaint();
+
+
+  /**
+   * Lines broken at a particular width. Once made, this isn't modified.
+   */
+  private static class Layout {
+    public Font font = null;
+    public int width = 0;
+    public ArrayList paragraphs = null;
+    public float height = 0;
+    public float advance = 0;
+  }
+
+
+
+  /**
+   * A line of text up to a line break, and its wrapped layout.
+   */
+  private static class Paragraph {
+    public AttributedString text = null;  // null if empty
+    public ArrayList lines = null;
+    public float singleAdvance = Float.MAX_VALUE;
+    public float emptyHeight = 0;
   }
 
 
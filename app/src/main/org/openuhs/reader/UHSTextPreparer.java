@@ -0,0 +1,285 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.openuhs.reader;
+
+import java.awt.*;
+import javax.swing.event.*;
+import java.util.*;
+
+import org.openuhs.core.*;
+
+
+/**
+ * Resolves the markup of nodes' text on a background thread, and
+ * remembers the results.
+ * <br />Runs depend only on a node's content and type, not on fonts, so
+ * one cache serves every text size. Revisiting a node (e.g., with the
+ * back button) reuses its runs.
+ * <br />
+ * <br />Nodes can also be prefetched, if they're likely to be shown
+ * soon. That only happens when nothing else is queued, and only up to
+ * a budget of chars per cancelPrefetch().
+ * <br />
+ * <br />Listeners are notified on the event thread whenever runs that
+ * getRuns() couldn't supply are cached, a batch at a time.
+ */
+public class UHSTextPreparer {
+  /** Uncached text shorter than this is parsed immediately when asked for */
+  public static final int SYNC_LENGTH_LIMIT = 2048;
+
+  private static final long MAX_CACHED_CHARS = 4L*1024*1024;
+  private static final long MAX_PREFETCH_CHARS = MAX_CACHED_CHARS/4;
+
+  private UHSTextPreparer pronoun = this;
+
+  // Access-ordered, so the least recently used runs are evicted first
+  private LinkedHashMap cache = new LinkedHashMap(64, 0.75f, true);
+  private long cachedChars = 0;
+
+  private LinkedList queue = new LinkedList();
+  private LinkedList prefetchQueue = new LinkedList();
+  private long prefetchedChars = 0;
+  private HashSet wanted = new HashSet();  // Nodes getRuns() returned null for
+  private int generation = 0;
+  private boolean notifyPending = false;
+  private Thread worker = null;
+
+  private EventListenerList listenerList = new EventListenerList();
+
+
+  public UHSTextPreparer() {
+  }
+
+
+  /**
+   * Returns a node's runs, if they've already been prepared.
+   *
+   * @return the runs, or null
+   */
+  public synchronized UHSTextRuns getCachedRuns(UHSNode n) {
+    return (UHSTextRuns)cache.get(n);
+  }
+
+
+  /**
+   * Returns a node's runs, preparing them now if that would be quick.
+   * <br />Longer text, or text that has yet to be decoded, is queued
+   * ahead of everything else, and null is returned.
+   *
+   * @return the runs, or null if they'll be ready later
+   */
+  public UHSTextRuns getRuns(UHSNode n) {
+    UHSTextRuns result = getCachedRuns(n);
+    if (result != null) return result;
+
+    boolean quick = true;
+    if (n instanceof UHSLazyNode && !((UHSLazyNode)n).isDecoded()) quick = false;
+    else if (n.getContentType() == UHSNode.STRING && ((String)n.getContent()).length() >= SYNC_LENGTH_LIMIT) quick = false;
+
+    if (quick) {
+      result = UHSTextRuns.parse(n);
+      synchronized (pronoun) {
+        store(n, result);
+      }
+      return result;
+    }
+
+    synchronized (pronoun) {
+      // The worker may have beaten us to it
+      result = (UHSTextRuns)cache.get(n);
+      if (result != null) return result;
+
+      wanted.add(n);
+      prefetchQueue.remove(n);
+      queue.remove(n);
+      queue.addFirst(n);
+      startWorker();
+    }
+    return null;
+  }
+
+
+  /**
+   * Queues a node's text children for preparation.
+   * <br />This replaces whatever was queued before, since the
+   * reader has moved on. Nodes that getRuns() returned null for stay
+   * at the head of the queue, though. Their rows are blank until
+   * the runs arrive, and cached panels may show them again.
+   */
+  public synchronized void prepareChildren(UHSNode parent) {
+    Iterator it = queue.iterator();
+    while (it.hasNext()) {
+      if (!wanted.contains(it.next())) it.remove();
+    }
+    for (int i=0; i < parent.getChildCount(); i++) {
+      UHSNode tmpNode = parent.getChild(i);
+      if (tmpNode.getContentType() != UHSNode.STRING || cache.containsKey(tmpNode) || wanted.contains(tmpNode)) continue;
+      queue.add(tmpNode);
+    }
+    if (queue.size() > 0) startWorker();
+  }
+
+
+  /**
+   * Queues a node to be prepared when there's nothing else to do.
+   */
+  public synchronized void prefetch(UHSNode n) {
+    if (n.getContentType() != UHSNode.STRING || cache.containsKey(n)) return;
+    prefetchQueue.add(n);
+    startWorker();
+  }
+
+
+  /**
+   * Forgets nodes queued for prefetching, and resets the prefetch budget.
+   */
+  public synchronized void cancelPrefetch() {
+    prefetchQueue.clear();
+    prefetchedChars = 0;
+  }
+
+
+  /**
+   * Forgets all runs and queued nodes (e.g., when a new file is opened).
+   */
+  public synchronized void clear() {
+    cache.clear();
+    cachedChars = 0;
+    queue.clear();
+    prefetchQueue.clear();
+    prefetchedChars = 0;
+    wanted.clear();
+    generation++;
+  }
+
+
+  public void addChangeListener(ChangeListener l) {
+    listenerList.add(ChangeListener.class, l);
+  }
+
+  public void removeChangeListener(ChangeListener l) {
+    listenerList.remove(ChangeListener.class, l);
+  }
+
+
+  /**
+   * Notifies listeners that more runs are available.
+   */
+  private void fireStateChanged() {
+    ChangeEvent e = new ChangeEvent(pronoun);
+    Object[] listeners = listenerList.getListenerList();
+    for (int i=listeners.length-2; i >= 0; i-=2) {
+      if (listeners[i] == ChangeListener.class) ((ChangeListener)listeners[i+1]).stateChanged(e);
+    }
+  }
+
+
+  /**
+   * Caches runs, evicting the least recently used if there are too many chars.
+   * <br />Call this while holding this object's lock.
+   */
+  private void store(UHSNode n, UHSTextRuns r) {
+    UHSTextRuns old = (UHSTextRuns)cache.put(n, r);
+    if (old != null) cachedChars -= old.getText().length();
+    cachedChars += r.getText().length();
+
+    Iterator it = cache.values().iterator();
+    while (cachedChars > MAX_CACHED_CHARS && cache.size() > 1 && it.hasNext()) {
+      UHSTextRuns eldest = (UHSTextRuns)it.next();
+      if (eldest == r) break;
+      cachedChars -= eldest.getText().length();
+      it.remove();
+    }
+  }
+
+
+  /**
+   * Arranges for listeners to be notified, unless they already will be.
+   * <br />Call this while holding this object's lock.
+   */
+  private void scheduleNotify() {
+    if (notifyPending) return;
+    notifyPending = true;
+    EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        synchronized (pronoun) {notifyPending = false;}
+        fireStateChanged();
+      }
+    });
+  }
+
+
+  /**
+   * Starts the background thread, if it isn't already running.
+   * <br />Call this while holding this object's lock.
+   */
+  private void startWorker() {
+    if (worker != null) {
+      pronoun.notifyAll();
+      return;
+    }
+    worker = new Thread("UHSTextPreparer") {
+      public void run() {
+        while (true) {
+          UHSNode tmpNode = null;
+          boolean prefetching = false;
+          int tmpGeneration = 0;
+          synchronized (pronoun) {
+            while (queue.size() == 0 && prefetchQueue.size() == 0) {
+              try {pronoun.wait();}
+              catch (InterruptedException e) {return;}
+            }
+            if (queue.size() > 0) {
+              tmpNode = (UHSNode)queue.removeFirst();
+            } else {
+              tmpNode = (UHSNode)prefetchQueue.removeFirst();
+              prefetching = true;
+              if (prefetchedChars >= MAX_PREFETCH_CHARS) {
+                prefetchQueue.clear();
+                continue;
+              }
+            }
+            tmpGeneration = generation;
+            if (cache.containsKey(tmpNode)) {
+              if (wanted.remove(tmpNode)) scheduleNotify();
+              continue;
+            }
+          }
+
+          // Content may be decoded here, outside the lock
+          UHSTextRuns tmpRuns = UHSTextRuns.parse(tmpNode);
+
+          synchronized (pronoun) {
+            if (tmpGeneration != generation) continue;
+            store(tmpNode, tmpRuns);
+            if (prefetching) prefetchedChars += tmpRuns.getText().length();
+            if (wanted.remove(tmpNode)) scheduleNotify();
+          }
+        }
+      }
+    };
+    worker.setDaemon(true);
+    worker.setPriority(Thread.NORM_PRIORITY-1);
+    worker.start();
+  }
+}
@@ -0,0 +1,186 @@
+/*
+    OpenUHS: Universal Hint System reader.
+    Copyright (C) 2012  David Millis
+
+    The original author can be reached at tvtronix@yahoo.com
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.openuhs.reader;
+
+import org.openuhs.core.*;
+
+
+/**
+ * A node's text with UHS markup resolved into styled runs.
+ * <br />Markup is stripped from the text, and each run names the style
+ * (from UHSTextArea's style context) its chars should be drawn in.
+ * <br />
+ * <br />"#p-" switches to monospaced, "#p+" back to proportional, and
+ * "#h+"/"#h-" surround hyperlinks. Instances are immutable.
+ */
+public class UHSTextRuns {
+  private static final char[][] PREFIXES = {{'#','p','+'}, {'#','p','-'}, {'#','h','+'}};
+  private static final char[][] SUFFIXES = {         null,          null, {'#','h','-'}};
+  private static final int MARKUP_LEN = 3;
+
+  private String text = "";
+  private int[] runStarts = new int[0];
+  private String[] runStyles = new String[0];
+  private int runCount = 0;
+
+
+  private UHSTextRuns() {
+  }
+
+
+  /**
+   * Resolves a node's markup.
+   *
+   * @param node a node, whose type also picks the base style (group, link, or regular)
+   * @return the runs, empty if the node has no text
+   */
+  public static UHSTextRuns parse(UHSNode node) {
+    UHSTextRuns result = new UHSTextRuns();
+    if (node.getContentType() != UHSNode.STRING) return result;
+
+    String[] styles = {"regular", "monospaced", "hyper"};
+    if (node.isGroup()) styles[0] = "group";
+    else if (node.isLink()) styles[0] = "link";
+
+    char[] content = ((String)node.getContent()).toCharArray();
+    StringBuffer textBuf = new StringBuffer(content.length);
+
+    // A stack of style indeces, the current one on top
+    int[] history = new int[8];
+    int historySize = 0;
+
+    int lastPos = 0;
+    int i = 0;
+    while (i+MARKUP_LEN-1 < content.length) {
+      int currentStyle = (historySize > 0 ? history[historySize-1] : 0);
+      int newStyle = -1;
+      boolean reverted = false;
+      for (int j=0; j < PREFIXES.length; j++) {
+        if (matches(content, i, PREFIXES[j])) {newStyle = j; break;}
+      }
+      if (newStyle == -1) {
+        for (int j=0; j < SUFFIXES.length; j++) {
+          if (SUFFIXES[j] == null || !matches(content, i, SUFFIXES[j])) continue;
+          // The oldest matching prefix is closed, not necessarily the newest
+          for (int k=0; k < historySize; k++) {
+            if (history[k] != j) continue;
+            System.arraycopy(history, k+1, history, k, historySize-k-1);
+            historySize--;
+            break;
+          }
+          newStyle = (historySize > 0 ? history[historySize-1] : 0);
+          reverted = true;
+          break;
+        }
+      }
+      if (newStyle == -1) {
+        i++;
+        continue;
+      }
+
+      // The style in effect before this markup applies to the text up to it
+      if (i > lastPos) {
+        result.addRun(textBuf, styles[currentStyle], content, lastPos, i);
+      }
+      // Until "#h-" pops it, the stack keeps that style for the next run
+      if (!reverted) {
+        if (historySize == history.length) history = growInts(history);
+        history[historySize++] = newStyle;
+      }
+      i += MARKUP_LEN;
+      lastPos = i;
+    }
+    if (lastPos < content.length) {
+      int currentStyle = (historySize > 0 ? history[historySize-1] : 0);
+      result.addRun(textBuf, styles[currentStyle], content, lastPos, content.length);
+    }
+
+    result.text = textBuf.toString();
+    return result;
+  }
+
+
+  /**
+   * Appends chars to the text as a new run.
+   */
+  private void addRun(StringBuffer textBuf, String styleName, char[] content, int start, int end) {
+    if (runCount == runStarts.length) {
+      int[] newStarts = new int[Math.max(8, runCount*2)];
+      System.arraycopy(runStarts, 0, newStarts, 0, runCount);
+      runStarts = newStarts;
+      String[] newStyles = new String[newStarts.length];
+      System.arraycopy(runStyles, 0, newStyles, 0, runCount);
+      runStyles = newStyles;
+    }
+    runStarts[runCount] = textBuf.length();
+    runStyles[runCount] = styleName;
+    runCount++;
+    textBuf.append(content, start, end-start);
+  }
+
+
+  /**
+   * Returns the text, without markup.
+   */
+  public String getText() {
+    return text;
+  }
+
+  public int getRunCount() {
+    return runCount;
+  }
+
+  /**
+   * Returns the index in the text where a run starts.
+   */
+  public int getRunStart(int n) {
+    return runStarts[n];
+  }
+
+  /**
+   * Returns the index in the text just past a run.
+   */
+  public int getRunEnd(int n) {
+    return (n+1 < runCount ? runStarts[n+1] : text.length());
+  }
+
+  /**
+   * Returns the name of the style a run should be drawn in.
+   */
+  public String getRunStyle(int n) {
+    return runStyles[n];
+  }
+
+
+  private static boolean matches(char[] content, int offset, char[] markup) {
+    for (int i=0; i < markup.length; i++) {
+      if (content[offset+i] != markup[i]) return false;
+    }
+    return true;
+  }
+
+  private static int[] growInts(int[] a) {
+    int[] result = new int[a.length*2];
+    System.arraycopy(a, 0, result, 0, a.length);
+    return result;
+  }
+}